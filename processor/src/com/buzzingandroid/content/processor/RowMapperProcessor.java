@@ -0,0 +1,304 @@
+package com.buzzingandroid.content.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a <tt>RowMapper</tt> for every class annotated with <tt>@MappedRow</tt>.<br />
+ * <br />
+ * The generated mapper reads the fields annotated with <tt>@Column</tt> with the typed
+ * Cursor getters, using column indexes looked up once per cursor, without reflection.<br />
+ * <br />
+ * The annotations are matched by name, so the processor doesn't depend on the Android classes.
+ * Put the processor on the annotation processor path of the project that uses the annotations.
+ * @author Jesper Borgstrup
+ */
+public class RowMapperProcessor extends AbstractProcessor {
+	
+	private static final String PACKAGE = "com.buzzingandroid.content";
+	private static final String MAPPED_ROW = PACKAGE + ".MappedRow";
+	private static final String COLUMN = PACKAGE + ".Column";
+	
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		return new HashSet<String>( Arrays.asList( MAPPED_ROW, COLUMN ) );
+	}
+	
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+	
+	@Override
+	public boolean process( Set<? extends TypeElement> annotations, RoundEnvironment roundEnv ) {
+		TypeElement mappedRow = processingEnv.getElementUtils().getTypeElement( MAPPED_ROW );
+		if ( mappedRow == null ) {
+			return false;
+		}
+		for ( Element element: roundEnv.getElementsAnnotatedWith( mappedRow ) ) {
+			TypeElement type = (TypeElement) element;
+			if ( isValid( type ) ) {
+				generate( type );
+			}
+		}
+		return true;
+	}
+	
+	private boolean isValid( TypeElement type ) {
+		if ( type.getKind() != ElementKind.CLASS || type.getModifiers().contains( Modifier.ABSTRACT ) ) {
+			return error( type, "@MappedRow must be put on a concrete class" );
+		}
+		if ( type.getModifiers().contains( Modifier.PRIVATE ) ) {
+			return error( type, "@MappedRow classes must not be private" );
+		}
+		if ( type.getNestingKind() != NestingKind.TOP_LEVEL
+				&& ( type.getNestingKind() != NestingKind.MEMBER || !type.getModifiers().contains( Modifier.STATIC ) ) ) {
+			return error( type, "@MappedRow classes must be top-level or static nested classes" );
+		}
+		boolean hasConstructor = false;
+		for ( ExecutableElement constructor: ElementFilter.constructorsIn( type.getEnclosedElements() ) ) {
+			if ( constructor.getParameters().isEmpty() && !constructor.getModifiers().contains( Modifier.PRIVATE ) ) {
+				hasConstructor = true;
+			}
+		}
+		if ( !hasConstructor ) {
+			return error( type, "@MappedRow classes must have a non-private constructor without arguments" );
+		}
+		return true;
+	}
+	
+	/**
+	 * A field to read, and the column to read it from
+	 */
+	private static class MappedField {
+		final VariableElement field;
+		final String column;
+		
+		MappedField( VariableElement field, String column ) {
+			this.field = field;
+			this.column = column;
+		}
+	}
+	
+	private void generate( TypeElement type ) {
+		List<MappedField> fields = new ArrayList<MappedField>();
+		boolean valid = true;
+		for ( VariableElement field: ElementFilter.fieldsIn( type.getEnclosedElements() ) ) {
+			AnnotationMirror column = findAnnotation( field, COLUMN );
+			if ( column == null ) {
+				continue;
+			}
+			Set<Modifier> modifiers = field.getModifiers();
+			if ( modifiers.contains( Modifier.PRIVATE ) || modifiers.contains( Modifier.STATIC ) || modifiers.contains( Modifier.FINAL ) ) {
+				valid = error( field, "@Column fields must not be private, static or final" );
+			} else if ( readExpression( field.asType(), 0 ) == null ) {
+				valid = error( field, "@Column fields can't be of type " + field.asType() );
+			} else {
+				fields.add( new MappedField( field, columnName( field, column ) ) );
+			}
+		}
+		if ( !valid ) {
+			return;
+		}
+		if ( fields.isEmpty() ) {
+			warning( type, "@MappedRow class has no @Column fields" );
+		}
+		
+		final String packageName = getPackage( type ).getQualifiedName().toString();
+		final String mapperName = mapperName( type );
+		final String typeName = type.getQualifiedName().toString();
+		
+		StringBuilder source = new StringBuilder();
+		if ( packageName.length() > 0 ) {
+			source.append( "package " ).append( packageName ).append( ";\n\n" );
+		}
+		source.append( "import android.database.Cursor;\n\n" );
+		source.append( "import " ).append( PACKAGE ).append( ".RowMapper;\n\n" );
+		source.append( "/**\n" );
+		source.append( " * Reads {@link " ).append( typeName ).append( "} rows. Generated by " )
+				.append( RowMapperProcessor.class.getSimpleName() ).append( ", do not edit.\n" );
+		source.append( " */\n" );
+		if ( type.getModifiers().contains( Modifier.PUBLIC ) ) {
+			source.append( "public " );
+		}
+		source.append( "final class " ).append( mapperName )
+				.append( " extends RowMapper<" ).append( typeName ).append( "> {\n" );
+		source.append( "\t\n" );
+		source.append( "\tpublic " ).append( mapperName ).append( "() {\n" );
+		source.append( "\t\tsuper(" );
+		for ( int i = 0; i < fields.size(); i++ ) {
+			source.append( i == 0 ? " " : ", " ).append( stringLiteral( fields.get( i ).column ) );
+		}
+		source.append( fields.isEmpty() ? ");\n" : " );\n" );
+		source.append( "\t}\n" );
+		source.append( "\t\n" );
+		source.append( "\t@Override\n" );
+		source.append( "\tpublic " ).append( typeName ).append( " map( Cursor cursor, int[] columns ) {\n" );
+		source.append( "\t\t" ).append( typeName ).append( " row = new " ).append( typeName ).append( "();\n" );
+		for ( int i = 0; i < fields.size(); i++ ) {
+			VariableElement field = fields.get( i ).field;
+			source.append( "\t\trow." ).append( field.getSimpleName() ).append( " = " )
+					.append( readExpression( field.asType(), i ) ).append( ";\n" );
+		}
+		source.append( "\t\treturn row;\n" );
+		source.append( "\t}\n" );
+		source.append( "}\n" );
+		
+		String qualifiedName = packageName.length() > 0 ? packageName + "." + mapperName : mapperName;
+		try {
+			JavaFileObject file = processingEnv.getFiler().createSourceFile( qualifiedName, type );
+			Writer writer = file.openWriter();
+			try {
+				writer.write( source.toString() );
+			} finally {
+				writer.close();
+			}
+		} catch ( IOException e ) {
+			error( type, "Could not write " + qualifiedName + ": " + e.getMessage() );
+		}
+	}
+	
+	/**
+	 * @param type
+	 * @param index The index of the column in the projection
+	 * @return A Java expression reading a value of the type from the cursor, or null if the type isn't supported
+	 */
+	private static String readExpression( TypeMirror type, int index ) {
+		final String column = "columns[" + index + "]";
+		switch ( type.getKind() ) {
+		case LONG:
+			return "cursor.getLong( " + column + " )";
+		case INT:
+			return "cursor.getInt( " + column + " )";
+		case SHORT:
+			return "cursor.getShort( " + column + " )";
+		case DOUBLE:
+			return "cursor.getDouble( " + column + " )";
+		case FLOAT:
+			return "cursor.getFloat( " + column + " )";
+		case BOOLEAN:
+			return "cursor.getInt( " + column + " ) != 0";
+		case ARRAY:
+			if ( ( (ArrayType) type ).getComponentType().getKind() == TypeKind.BYTE ) {
+				return "cursor.getBlob( " + column + " )";
+			}
+			return null;
+		case DECLARED:
+			String boxed = type.toString();
+			String read;
+			if ( boxed.equals( "java.lang.String" ) ) {
+				return "cursor.getString( " + column + " )";
+			} else if ( boxed.equals( "java.lang.Long" ) ) {
+				read = "Long.valueOf( cursor.getLong( " + column + " ) )";
+			} else if ( boxed.equals( "java.lang.Integer" ) ) {
+				read = "Integer.valueOf( cursor.getInt( " + column + " ) )";
+			} else if ( boxed.equals( "java.lang.Short" ) ) {
+				read = "Short.valueOf( cursor.getShort( " + column + " ) )";
+			} else if ( boxed.equals( "java.lang.Double" ) ) {
+				read = "Double.valueOf( cursor.getDouble( " + column + " ) )";
+			} else if ( boxed.equals( "java.lang.Float" ) ) {
+				read = "Float.valueOf( cursor.getFloat( " + column + " ) )";
+			} else if ( boxed.equals( "java.lang.Boolean" ) ) {
+				read = "Boolean.valueOf( cursor.getInt( " + column + " ) != 0 )";
+			} else {
+				return null;
+			}
+			return "cursor.isNull( " + column + " ) ? null : " + read;
+		default:
+			return null;
+		}
+	}
+	
+	private static AnnotationMirror findAnnotation( Element element, String annotationName ) {
+		for ( AnnotationMirror annotation: element.getAnnotationMirrors() ) {
+			TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+			if ( annotationType.getQualifiedName().contentEquals( annotationName ) ) {
+				return annotation;
+			}
+		}
+		return null;
+	}
+	
+	private static String columnName( VariableElement field, AnnotationMirror column ) {
+		for ( Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry: column.getElementValues().entrySet() ) {
+			if ( entry.getKey().getSimpleName().contentEquals( "value" ) ) {
+				String name = (String) entry.getValue().getValue();
+				if ( name.length() > 0 ) {
+					return name;
+				}
+			}
+		}
+		return field.getSimpleName().toString();
+	}
+	
+	private static PackageElement getPackage( Element element ) {
+		while ( element.getKind() != ElementKind.PACKAGE ) {
+			element = element.getEnclosingElement();
+		}
+		return (PackageElement) element;
+	}
+	
+	/**
+	 * @param type
+	 * @return <tt>[class]RowMapper</tt>, prefixed by the names of any enclosing classes and underscores
+	 */
+	private static String mapperName( TypeElement type ) {
+		StringBuilder name = new StringBuilder( type.getSimpleName() );
+		for ( Element outer = type.getEnclosingElement(); outer.getKind() != ElementKind.PACKAGE; outer = outer.getEnclosingElement() ) {
+			name.insert( 0, '_' ).insert( 0, outer.getSimpleName() );
+		}
+		return name.append( "RowMapper" ).toString();
+	}
+	
+	private static String stringLiteral( String value ) {
+		StringBuilder literal = new StringBuilder( "\"" );
+		for ( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			if ( c == '"' || c == '\\' ) {
+				literal.append( '\\' );
+			}
+			literal.append( c );
+		}
+		return literal.append( '"' ).toString();
+	}
+	
+	private boolean error( Element element, String message ) {
+		getMessager().printMessage( Diagnostic.Kind.ERROR, message, element );
+		return false;
+	}
+	
+	private void warning( Element element, String message ) {
+		getMessager().printMessage( Diagnostic.Kind.WARNING, message, element );
+	}
+	
+	private Messager getMessager() {
+		return processingEnv.getMessager();
+	}
+}
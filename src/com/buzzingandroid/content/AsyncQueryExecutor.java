@@ -0,0 +1,180 @@
+package com.buzzingandroid.content;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Runs queries on a bounded pool of background threads, and delivers their results
+ * on the Looper of the thread that submitted them.<br />
+ * <br />
+ * Waiting queries are run in order of {@link Priority}, so e.g. queries for what the user sees
+ * run before background prefetching, and queries of the same priority run in the order they were
+ * submitted. Every query can be cancelled through the {@link CancellationToken} returned when
+ * submitting it. A cancelled query that hasn't started is removed from the queue.<br />
+ * <br />
+ * {@link QueryBuilder#queryAsync(android.content.Context, android.net.Uri, Priority, QueryBuilder.AsyncQueryCallback)}
+ * uses the executor set with {@link QueryBuilder#setAsyncQueryExecutor(AsyncQueryExecutor)},
+ * or the one returned by {@link #getDefault()}.
+ * @author Jesper Borgstrup
+ */
+public class AsyncQueryExecutor {
+	
+	public static final int DEFAULT_POOL_SIZE = 2;
+	
+	private static final String TAG = "AsyncQueryExecutor";
+	
+	public enum Priority {
+		/**
+		 * For results the user is waiting to see
+		 */
+		VISIBLE,
+		NORMAL,
+		/**
+		 * For results that may be needed later, e.g. prefetching or background sync
+		 */
+		PREFETCH
+	}
+	
+	/**
+	 * A piece of background work with a result that is delivered on the submitting thread
+	 * @param <T> The type of the result
+	 */
+	public static abstract class Task<T> {
+		/**
+		 * Does the work, on a background thread. If this throws a RuntimeException,
+		 * it is logged and null is delivered, like <tt>AsyncQueryHandler</tt> does.
+		 * @return
+		 */
+		protected abstract T run();
+		
+		/**
+		 * Receives the result, on the thread that submitted the task, unless the task was cancelled
+		 * @param result
+		 */
+		protected abstract void deliver( T result );
+		
+		/**
+		 * Disposes of the result of a task that was cancelled while it ran,
+		 * e.g. by closing a cursor. Called on the thread that submitted the task.
+		 * @param result
+		 */
+		protected void discard( T result ) {}
+	}
+	
+	private static AsyncQueryExecutor defaultExecutor;
+	
+	/**
+	 * @return A shared executor with {@link #DEFAULT_POOL_SIZE} threads
+	 */
+	public static synchronized AsyncQueryExecutor getDefault() {
+		if ( defaultExecutor == null ) {
+			defaultExecutor = new AsyncQueryExecutor( DEFAULT_POOL_SIZE );
+		}
+		return defaultExecutor;
+	}
+	
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong sequence = new AtomicLong();
+	
+	/**
+	 * @param poolSize The maximum number of queries to run at the same time
+	 */
+	public AsyncQueryExecutor( int poolSize ) {
+		final AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory threadFactory = new ThreadFactory() {
+			public Thread newThread( final Runnable r ) {
+				Thread thread = new Thread( new Runnable() {
+					public void run() {
+						Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+						r.run();
+					}
+				}, "AsyncQueryExecutor #" + threadCount.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		};
+		this.executor = new ThreadPoolExecutor( poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+												new PriorityBlockingQueue<Runnable>(), threadFactory );
+	}
+	
+	/**
+	 * Submits a task to run in the background. Must be called on a thread with a Looper,
+	 * or the result is delivered on the main thread.
+	 * @param priority
+	 * @param task
+	 * @return A token for cancelling the task
+	 */
+	public <T> CancellationToken submit( Priority priority, final Task<T> task ) {
+		Looper looper = Looper.myLooper();
+		final Handler handler = new Handler( looper != null ? looper : Looper.getMainLooper() );
+		final CancellationToken token = new CancellationToken();
+		
+		final QueuedTask queued = new QueuedTask( priority, sequence.getAndIncrement() ) {
+			public void run() {
+				if ( token.isCancelled() ) {
+					return;
+				}
+				T taskResult;
+				try {
+					taskResult = task.run();
+				} catch ( RuntimeException e ) {
+					Log.w( TAG, "Exception thrown while running query", e );
+					taskResult = null;
+				}
+				final T result = taskResult;
+				handler.post( new Runnable() {
+					public void run() {
+						if ( token.isCancelled() ) {
+							task.discard( result );
+						} else {
+							task.deliver( result );
+						}
+					}
+				} );
+			}
+		};
+		token.setOnCancel( new Runnable() {
+			public void run() {
+				executor.remove( queued );
+			}
+		} );
+		executor.execute( queued );
+		return token;
+	}
+	
+	/**
+	 * @return The number of queries waiting to run
+	 */
+	public int getQueueLength() {
+		return executor.getQueue().size();
+	}
+	
+	/**
+	 * Orders waiting tasks by priority, then by the order they were submitted
+	 */
+	private static abstract class QueuedTask implements Runnable, Comparable<QueuedTask> {
+		private final Priority priority;
+		private final long sequence;
+		
+		QueuedTask( Priority priority, long sequence ) {
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+		
+		public int compareTo( QueuedTask other ) {
+			if ( priority != other.priority ) {
+				return priority.ordinal() - other.priority.ordinal();
+			}
+			return sequence < other.sequence ? -1 : ( sequence == other.sequence ? 0 : 1 );
+		}
+	}
+}
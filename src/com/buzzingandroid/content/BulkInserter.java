@@ -0,0 +1,263 @@
+package com.buzzingandroid.content;
+
+import java.util.Iterator;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+/**
+ * Inserts a stream of rows into a content provider in chunks, instead of calling
+ * <tt>insert</tt> (and making a binder round-trip and a transaction) for every row.<br />
+ * <br />
+ * By default each chunk is sent with <tt>bulkInsert</tt>. With {@link #setUseApplyBatch(boolean)},
+ * the chunks are sent through an {@link OperationBatch} instead, which most SQLite-backed providers
+ * apply in a single transaction per chunk.<br />
+ * <br />
+ * When the rows come from a {@link RowSource}, the same ContentValues instances are filled
+ * again for every chunk, so no garbage is created per row.
+ * <pre>
+ * BulkInserter.Stats stats = new BulkInserter( context.getContentResolver(), uri ).insert( new RowSource() {
+ *     public boolean nextRow( ContentValues values ) {
+ *         if ( !reader.hasNext() ) return false;
+ *         values.put( "name", reader.next() );
+ *         return true;
+ *     }
+ * } );
+ * </pre>
+ * @author Jesper Borgstrup
+ */
+public class BulkInserter {
+	
+	public static final int DEFAULT_CHUNK_SIZE = 500;
+	
+	public interface RowSource {
+		/**
+		 * Put the values of the next row into the specified, empty ContentValues.
+		 * Don't keep a reference to it, as it is reused for a later row.
+		 * @param values
+		 * @return false if there are no more rows, in which case the values are ignored
+		 */
+		public boolean nextRow( ContentValues values );
+	}
+	
+	/**
+	 * The throughput of a finished insert
+	 */
+	public static class Stats {
+		private final int rows;
+		private final int chunks;
+		private final long elapsedMillis;
+		
+		Stats( int rows, int chunks, long elapsedMillis ) {
+			this.rows = rows;
+			this.chunks = chunks;
+			this.elapsedMillis = elapsedMillis;
+		}
+		
+		/**
+		 * @return The number of rows inserted, as reported by the provider
+		 */
+		public int getRows() {
+			return rows;
+		}
+		
+		/**
+		 * @return The number of <tt>bulkInsert</tt> or <tt>applyBatch</tt> calls made
+		 */
+		public int getChunks() {
+			return chunks;
+		}
+		
+		public long getElapsedMillis() {
+			return elapsedMillis;
+		}
+		
+		public double getRowsPerSecond() {
+			return elapsedMillis == 0 ? rows * 1000.0 : rows * 1000.0 / elapsedMillis;
+		}
+		
+		@Override
+		public String toString() {
+			return rows + " rows in " + chunks + " chunks, " + elapsedMillis + " ms (" + Math.round( getRowsPerSecond() ) + " rows/s)";
+		}
+	}
+	
+	private final ContentResolver resolver;
+	private final ContentProviderClient provider;
+	private final Uri uri;
+	
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private boolean useApplyBatch = false;
+	
+	/**
+	 * Create an inserter that inserts through the ContentResolver
+	 * @param resolver
+	 * @param uri The URI to insert the rows into
+	 */
+	public BulkInserter( ContentResolver resolver, Uri uri ) {
+		this.resolver = resolver;
+		this.provider = null;
+		this.uri = uri;
+	}
+	
+	/**
+	 * Create an inserter that inserts through the ContentProviderClient
+	 * @param provider
+	 * @param uri The URI to insert the rows into
+	 */
+	public BulkInserter( ContentProviderClient provider, Uri uri ) {
+		this.resolver = null;
+		this.provider = provider;
+		this.uri = uri;
+	}
+	
+	/**
+	 * Sets the maximum number of rows sent to the provider in a single call.
+	 * The default is {@link #DEFAULT_CHUNK_SIZE}.
+	 * @param chunkSize
+	 * @return The BulkInserter instance for chaining method calls
+	 */
+	public BulkInserter setChunkSize( int chunkSize ) {
+		if ( chunkSize < 1 ) {
+			throw new IllegalArgumentException( "Chunk size must be positive" );
+		}
+		this.chunkSize = chunkSize;
+		return this;
+	}
+	
+	/**
+	 * Sets whether the chunks are sent with <tt>applyBatch</tt> instead of <tt>bulkInsert</tt>.<br />
+	 * <br />
+	 * The default <tt>ContentProvider.bulkInsert()</tt> inserts the rows one at a time without
+	 * a transaction, so use this for providers that don't override <tt>bulkInsert</tt>.
+	 * @param useApplyBatch
+	 * @return The BulkInserter instance for chaining method calls
+	 */
+	public BulkInserter setUseApplyBatch( boolean useApplyBatch ) {
+		this.useApplyBatch = useApplyBatch;
+		return this;
+	}
+	
+	/**
+	 * Inserts every row from the source, reusing one ContentValues instance per row in a chunk
+	 * @param source
+	 * @return
+	 * @throws RemoteException
+	 * @throws OperationApplicationException
+	 */
+	public Stats insert( RowSource source ) throws RemoteException, OperationApplicationException {
+		final long start = SystemClock.elapsedRealtime();
+		
+		if ( useApplyBatch ) {
+			/*
+			 * The operation copies the values, so a single instance is enough
+			 */
+			OperationBatch batch = createBatch();
+			ContentValues values = new ContentValues();
+			int rows = 0;
+			while ( source.nextRow( values ) ) {
+				batch.add( ContentProviderOperation.newInsert( uri ).withValues( values ) );
+				values.clear();
+				rows++;
+			}
+			batch.flush();
+			return new Stats( rows, batch.getAppliedChunkCount(), SystemClock.elapsedRealtime() - start );
+		}
+		
+		ContentValues[] pool = new ContentValues[ chunkSize ];
+		for ( int i = 0; i < pool.length; i++ ) {
+			pool[i] = new ContentValues();
+		}
+		
+		int rows = 0;
+		int chunks = 0;
+		boolean more = true;
+		while ( more ) {
+			int count = 0;
+			while ( count < pool.length ) {
+				ContentValues values = pool[ count ];
+				values.clear();
+				if ( !source.nextRow( values ) ) {
+					more = false;
+					break;
+				}
+				count++;
+			}
+			if ( count > 0 ) {
+				rows += bulkInsert( count == pool.length ? pool : head( pool, count ) );
+				chunks++;
+			}
+		}
+		return new Stats( rows, chunks, SystemClock.elapsedRealtime() - start );
+	}
+	
+	/**
+	 * Inserts every row from the iterator. The ContentValues are not modified.
+	 * @param rows
+	 * @return
+	 * @throws RemoteException
+	 * @throws OperationApplicationException
+	 */
+	public Stats insert( Iterator<ContentValues> rows ) throws RemoteException, OperationApplicationException {
+		final long start = SystemClock.elapsedRealtime();
+		
+		if ( useApplyBatch ) {
+			OperationBatch batch = createBatch();
+			int count = 0;
+			while ( rows.hasNext() ) {
+				batch.add( ContentProviderOperation.newInsert( uri ).withValues( rows.next() ) );
+				count++;
+			}
+			batch.flush();
+			return new Stats( count, batch.getAppliedChunkCount(), SystemClock.elapsedRealtime() - start );
+		}
+		
+		ContentValues[] chunk = new ContentValues[ chunkSize ];
+		int inserted = 0;
+		int chunks = 0;
+		int count = 0;
+		while ( rows.hasNext() ) {
+			chunk[ count++ ] = rows.next();
+			if ( count == chunk.length ) {
+				inserted += bulkInsert( chunk );
+				chunks++;
+				count = 0;
+			}
+		}
+		if ( count > 0 ) {
+			inserted += bulkInsert( head( chunk, count ) );
+			chunks++;
+		}
+		return new Stats( inserted, chunks, SystemClock.elapsedRealtime() - start );
+	}
+	
+	private int bulkInsert( ContentValues[] values ) throws RemoteException {
+		return provider != null
+				? provider.bulkInsert( uri, values )
+				: resolver.bulkInsert( uri, values );
+	}
+	
+	/**
+	 * @param values
+	 * @param count
+	 * @return A new array with the first <tt>count</tt> values
+	 */
+	private static ContentValues[] head( ContentValues[] values, int count ) {
+		ContentValues[] head = new ContentValues[ count ];
+		System.arraycopy( values, 0, head, 0, count );
+		return head;
+	}
+	
+	private OperationBatch createBatch() {
+		OperationBatch batch = provider != null
+				? new OperationBatch( provider )
+				: new OperationBatch( resolver, uri.getAuthority() );
+		return batch.setChunkSize( chunkSize ).setYieldInterval( 0 );
+	}
+}
@@ -0,0 +1,53 @@
+package com.buzzingandroid.content;
+
+/**
+ * Signals that the result of a background query is no longer wanted.<br />
+ * <br />
+ * A query that hasn't started when its token is cancelled is skipped, and the result
+ * of a query that was already running is closed instead of delivered.<br />
+ * This serves the same purpose as <tt>android.os.CancellationSignal</tt>, which is only
+ * available from Android 4.1.
+ * @author Jesper Borgstrup
+ */
+public class CancellationToken {
+	
+	private volatile boolean cancelled = false;
+	private Runnable onCancel;
+	
+	/**
+	 * Cancels the query. Has no effect if it has already been delivered.
+	 */
+	public void cancel() {
+		Runnable action;
+		synchronized ( this ) {
+			if ( cancelled ) {
+				return;
+			}
+			cancelled = true;
+			action = onCancel;
+			onCancel = null;
+		}
+		if ( action != null ) {
+			action.run();
+		}
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**
+	 * Sets an action to run when the token is cancelled, e.g. removing the query from a queue.
+	 * Runs the action right away if the token is already cancelled.
+	 * @param action
+	 */
+	void setOnCancel( Runnable action ) {
+		synchronized ( this ) {
+			if ( !cancelled ) {
+				onCancel = action;
+				return;
+			}
+		}
+		action.run();
+	}
+}
@@ -0,0 +1,24 @@
+package com.buzzingandroid.content;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a field of a {@link MappedRow} class to be read from a column.<br />
+ * <br />
+ * The field may be a <tt>long</tt>, <tt>int</tt>, <tt>short</tt>, <tt>double</tt>, <tt>float</tt>,
+ * <tt>boolean</tt> (non-zero is true), their boxed types, <tt>String</tt> or <tt>byte[]</tt>.
+ * Fields of boxed types, <tt>String</tt> and <tt>byte[]</tt> are null when the column is null;
+ * primitive fields are 0 or false. The field must not be private, static or final.
+ * @author Jesper Borgstrup
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface Column {
+	/**
+	 * @return The name of the column, or an empty string to use the name of the field
+	 */
+	String value() default "";
+}
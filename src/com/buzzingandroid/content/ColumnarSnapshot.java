@@ -0,0 +1,494 @@
+package com.buzzingandroid.content;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.os.Build;
+
+/**
+ * An immutable in-memory copy of a query result, stored column by column in primitive arrays.<br />
+ * <br />
+ * Integer columns are stored in a <tt>long[]</tt>, float columns in a <tt>double[]</tt>, and text
+ * columns as indexes into a table of strings shared by all columns, in which equal strings are stored once.
+ * Reading a value is an array lookup, so unlike a Cursor there is no window to refill when
+ * jumping between rows, and reading integers, floats and text allocates nothing.
+ * This suits large lists that are scrolled quickly.<br />
+ * <br />
+ * On Android 3.0 and newer the type of each column is the type of its values. A column with both
+ * integers and floats is stored as floats, and a column with other mixed types as text.
+ * On older versions every column is stored as text, and numbers are parsed when read.<br />
+ * <br />
+ * Snapshots are created with {@link QueryBuilder#snapshot(android.content.Context, android.net.Uri)}
+ * or {@link QueryBuilder#snapshotAsync(android.content.Context, android.net.Uri, QueryBuilder.SnapshotCallback)},
+ * and may be read from any thread.
+ * @author Jesper Borgstrup
+ */
+public final class ColumnarSnapshot {
+	
+	/*
+	 * The storage types of columns. A column is NONE until its first non-null value.
+	 */
+	private static final int NONE = 0;
+	private static final int INTEGER = 1;
+	private static final int FLOAT = 2;
+	private static final int TEXT = 3;
+	private static final int BLOB = 4;
+	
+	private static final String UTF_8 = "UTF-8";
+	
+	private final String[] columnNames;
+	private final int count;
+	private final int[] types;
+	/*
+	 * For each column a long[], double[], int[] (indexes into strings) or byte[][], depending on its type
+	 */
+	private final Object[] values;
+	/*
+	 * For each column a bit set of the rows that are null
+	 */
+	private final long[][] nulls;
+	private final String[] strings;
+	private final int sizeInBytes;
+	
+	private ColumnarSnapshot( String[] columnNames, int count, int[] types, Object[] values, long[][] nulls, String[] strings, int sizeInBytes ) {
+		this.columnNames = columnNames;
+		this.count = count;
+		this.types = types;
+		this.values = values;
+		this.nulls = nulls;
+		this.strings = strings;
+		this.sizeInBytes = sizeInBytes;
+	}
+	
+	/**
+	 * Copies every row of the cursor. The cursor position is changed, and the cursor is not closed.
+	 * @param cursor
+	 * @return
+	 */
+	public static ColumnarSnapshot read( Cursor cursor ) {
+		return new Reader( cursor ).read();
+	}
+	
+	/**
+	 * Reads a cursor into columns, converting a column when a value doesn't fit its type
+	 */
+	private static class Reader {
+		
+		private final Cursor cursor;
+		private final String[] columnNames;
+		private final int count;
+		private final int[] types;
+		private final Object[] values;
+		private final long[][] nulls;
+		private final HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+		private String[] strings = new String[ 16 ];
+		
+		Reader( Cursor cursor ) {
+			this.cursor = cursor;
+			this.columnNames = cursor.getColumnNames();
+			this.count = cursor.getCount();
+			this.types = new int[ columnNames.length ];
+			this.values = new Object[ columnNames.length ];
+			this.nulls = new long[ columnNames.length ][];
+			for ( int column = 0; column < columnNames.length; column++ ) {
+				nulls[ column ] = new long[ ( count + 63 ) >>> 6 ];
+			}
+		}
+		
+		ColumnarSnapshot read() {
+			final boolean typed = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+			int row = 0;
+			cursor.moveToPosition( -1 );
+			for ( ; row < count && cursor.moveToNext(); row++ ) {
+				for ( int column = 0; column < columnNames.length; column++ ) {
+					if ( typed ) {
+						readTyped( row, column );
+					} else {
+						readText( row, column );
+					}
+				}
+			}
+			
+			// Mark any rows the cursor didn't deliver, and all-null columns, as null
+			for ( int column = 0; column < columnNames.length; column++ ) {
+				for ( int missing = types[ column ] == NONE ? 0 : row; missing < count; missing++ ) {
+					nulls[ column ][ missing >>> 6 ] |= 1L << missing;
+				}
+			}
+			
+			String[] table = new String[ stringIndexes.size() ];
+			System.arraycopy( strings, 0, table, 0, table.length );
+			return new ColumnarSnapshot( columnNames, count, types, values, nulls, table, sizeInBytes( table ) );
+		}
+		
+		@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+		private void readTyped( int row, int column ) {
+			switch ( cursor.getType( column ) ) {
+			case Cursor.FIELD_TYPE_NULL:
+				nulls[ column ][ row >>> 6 ] |= 1L << row;
+				break;
+			case Cursor.FIELD_TYPE_INTEGER:
+				long longValue = cursor.getLong( column );
+				switch ( fit( column, INTEGER ) ) {
+				case INTEGER:
+					( (long[]) values[ column ] )[ row ] = longValue;
+					break;
+				case FLOAT:
+					( (double[]) values[ column ] )[ row ] = longValue;
+					break;
+				default:
+					( (int[]) values[ column ] )[ row ] = intern( Long.toString( longValue ) );
+				}
+				break;
+			case Cursor.FIELD_TYPE_FLOAT:
+				double doubleValue = cursor.getDouble( column );
+				if ( fit( column, FLOAT ) == FLOAT ) {
+					( (double[]) values[ column ] )[ row ] = doubleValue;
+				} else {
+					( (int[]) values[ column ] )[ row ] = intern( Double.toString( doubleValue ) );
+				}
+				break;
+			case Cursor.FIELD_TYPE_BLOB:
+				byte[] blob = cursor.getBlob( column );
+				if ( fit( column, BLOB ) == BLOB ) {
+					( (byte[][]) values[ column ] )[ row ] = blob;
+				} else {
+					( (int[]) values[ column ] )[ row ] = intern( decode( blob ) );
+				}
+				break;
+			default:
+				readText( row, column );
+			}
+		}
+		
+		private void readText( int row, int column ) {
+			String value = cursor.getString( column );
+			if ( value == null ) {
+				nulls[ column ][ row >>> 6 ] |= 1L << row;
+				return;
+			}
+			fit( column, TEXT );
+			( (int[]) values[ column ] )[ row ] = intern( value );
+		}
+		
+		/**
+		 * Makes sure the column can store a value of the given type, converting the
+		 * values already read if necessary
+		 * @param column
+		 * @param type
+		 * @return The type of the column afterwards
+		 */
+		private int fit( int column, int type ) {
+			final int current = types[ column ];
+			if ( current == type ) {
+				return type;
+			}
+			if ( current == NONE ) {
+				values[ column ] = allocate( type );
+				types[ column ] = type;
+				return type;
+			}
+			if ( current == FLOAT && type == INTEGER ) {
+				return FLOAT;
+			}
+			if ( current == INTEGER && type == FLOAT ) {
+				long[] longs = (long[]) values[ column ];
+				double[] doubles = new double[ count ];
+				for ( int row = 0; row < count; row++ ) {
+					doubles[ row ] = longs[ row ];
+				}
+				values[ column ] = doubles;
+				types[ column ] = FLOAT;
+				return FLOAT;
+			}
+			if ( current != TEXT ) {
+				int[] indexes = new int[ count ];
+				for ( int row = 0; row < count; row++ ) {
+					if ( ( nulls[ column ][ row >>> 6 ] & ( 1L << row ) ) == 0 ) {
+						indexes[ row ] = intern( toText( current, values[ column ], row ) );
+					}
+				}
+				values[ column ] = indexes;
+				types[ column ] = TEXT;
+			}
+			return TEXT;
+		}
+		
+		private Object allocate( int type ) {
+			switch ( type ) {
+			case INTEGER:
+				return new long[ count ];
+			case FLOAT:
+				return new double[ count ];
+			case BLOB:
+				return new byte[ count ][];
+			default:
+				return new int[ count ];
+			}
+		}
+		
+		private int intern( String value ) {
+			Integer index = stringIndexes.get( value );
+			if ( index != null ) {
+				return index;
+			}
+			final int size = stringIndexes.size();
+			if ( size == strings.length ) {
+				String[] grown = new String[ size * 2 ];
+				System.arraycopy( strings, 0, grown, 0, size );
+				strings = grown;
+			}
+			strings[ size ] = value;
+			stringIndexes.put( value, size );
+			return size;
+		}
+		
+		private int sizeInBytes( String[] table ) {
+			// Object headers and references are estimated as 16 and 4 bytes
+			int size = 16 + columnNames.length * 16;
+			for ( int column = 0; column < columnNames.length; column++ ) {
+				size += nulls[ column ].length * 8;
+				switch ( types[ column ] ) {
+				case INTEGER:
+				case FLOAT:
+					size += count * 8;
+					break;
+				case TEXT:
+					size += count * 4;
+					break;
+				case BLOB:
+					for ( byte[] blob: (byte[][]) values[ column ] ) {
+						size += blob == null ? 4 : 20 + blob.length;
+					}
+					break;
+				}
+			}
+			for ( String string: table ) {
+				size += 36 + 2 * string.length();
+			}
+			return size;
+		}
+	}
+	
+	private static String toText( int type, Object columnValues, int row ) {
+		switch ( type ) {
+		case INTEGER:
+			return Long.toString( ( (long[]) columnValues )[ row ] );
+		case FLOAT:
+			return Double.toString( ( (double[]) columnValues )[ row ] );
+		case BLOB:
+			return decode( ( (byte[][]) columnValues )[ row ] );
+		default:
+			throw new IllegalArgumentException( "Not a primitive column type: " + type );
+		}
+	}
+	
+	/**
+	 * Decodes a blob as UTF-8 text, like SQLite casts blobs to text
+	 */
+	private static String decode( byte[] blob ) {
+		try {
+			return new String( blob, UTF_8 );
+		} catch ( UnsupportedEncodingException e ) {
+			throw new AssertionError( e );
+		}
+	}
+	
+	/**
+	 * @return The number of rows
+	 */
+	public int getCount() {
+		return count;
+	}
+	
+	public int getColumnCount() {
+		return columnNames.length;
+	}
+	
+	public String[] getColumnNames() {
+		return columnNames.clone();
+	}
+	
+	public String getColumnName( int column ) {
+		return columnNames[ column ];
+	}
+	
+	/**
+	 * Finds a column by name. Look up the indexes once, not for every row.
+	 * @param columnName
+	 * @return The index of the column, or -1 if there is no such column
+	 */
+	public int getColumnIndex( String columnName ) {
+		for ( int column = 0; column < columnNames.length; column++ ) {
+			if ( columnNames[ column ].equalsIgnoreCase( columnName ) ) {
+				return column;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param columnName
+	 * @return The index of the column
+	 * @throws IllegalArgumentException if there is no such column
+	 */
+	public int getColumnIndexOrThrow( String columnName ) {
+		int column = getColumnIndex( columnName );
+		if ( column == -1 ) {
+			throw new IllegalArgumentException( "column '" + columnName + "' does not exist" );
+		}
+		return column;
+	}
+	
+	/**
+	 * @param row
+	 * @param column
+	 * @return Whether the value is null
+	 */
+	public boolean isNull( int row, int column ) {
+		checkRow( row );
+		return ( nulls[ column ][ row >>> 6 ] & ( 1L << row ) ) != 0;
+	}
+	
+	/**
+	 * @param row
+	 * @param column
+	 * @return The type of the value, as one of the <tt>FIELD_TYPE_</tt> constants in {@link Cursor}
+	 */
+	public int getType( int row, int column ) {
+		if ( isNull( row, column ) ) {
+			return Cursor.FIELD_TYPE_NULL;
+		}
+		switch ( types[ column ] ) {
+		case INTEGER:
+			return Cursor.FIELD_TYPE_INTEGER;
+		case FLOAT:
+			return Cursor.FIELD_TYPE_FLOAT;
+		case BLOB:
+			return Cursor.FIELD_TYPE_BLOB;
+		default:
+			return Cursor.FIELD_TYPE_STRING;
+		}
+	}
+	
+	/**
+	 * Reads a value as an integer. Floats are truncated, text is parsed,
+	 * and null, blobs and text that isn't a number are read as 0.
+	 * @param row
+	 * @param column
+	 * @return
+	 */
+	public long getLong( int row, int column ) {
+		if ( isNull( row, column ) ) {
+			return 0;
+		}
+		switch ( types[ column ] ) {
+		case INTEGER:
+			return ( (long[]) values[ column ] )[ row ];
+		case FLOAT:
+			return (long) ( (double[]) values[ column ] )[ row ];
+		case TEXT:
+			String text = strings[ ( (int[]) values[ column ] )[ row ] ];
+			try {
+				return Long.parseLong( text );
+			} catch ( NumberFormatException e ) {
+				return (long) parseDouble( text );
+			}
+		default:
+			return 0;
+		}
+	}
+	
+	/**
+	 * Reads a value as an int, like {@link #getLong(int, int)}
+	 * @param row
+	 * @param column
+	 * @return
+	 */
+	public int getInt( int row, int column ) {
+		return (int) getLong( row, column );
+	}
+	
+	/**
+	 * Reads a value as a float. Text is parsed, and null, blobs and text
+	 * that isn't a number are read as 0.
+	 * @param row
+	 * @param column
+	 * @return
+	 */
+	public double getDouble( int row, int column ) {
+		if ( isNull( row, column ) ) {
+			return 0;
+		}
+		switch ( types[ column ] ) {
+		case INTEGER:
+			return ( (long[]) values[ column ] )[ row ];
+		case FLOAT:
+			return ( (double[]) values[ column ] )[ row ];
+		case TEXT:
+			return parseDouble( strings[ ( (int[]) values[ column ] )[ row ] ] );
+		default:
+			return 0;
+		}
+	}
+	
+	private static double parseDouble( String text ) {
+		try {
+			return Double.parseDouble( text );
+		} catch ( NumberFormatException e ) {
+			return 0;
+		}
+	}
+	
+	/**
+	 * Reads a value as text. Text values are returned without allocating, and equal text values
+	 * in the snapshot are the same String instance.
+	 * @param row
+	 * @param column
+	 * @return The text, or null
+	 */
+	public String getString( int row, int column ) {
+		if ( isNull( row, column ) ) {
+			return null;
+		}
+		if ( types[ column ] == TEXT ) {
+			return strings[ ( (int[]) values[ column ] )[ row ] ];
+		}
+		return toText( types[ column ], values[ column ], row );
+	}
+	
+	/**
+	 * Reads a value as a blob. The returned array is shared, and must not be changed.
+	 * @param row
+	 * @param column
+	 * @return The blob, or null
+	 */
+	public byte[] getBlob( int row, int column ) {
+		if ( isNull( row, column ) ) {
+			return null;
+		}
+		if ( types[ column ] == BLOB ) {
+			return ( (byte[][]) values[ column ] )[ row ];
+		}
+		try {
+			return getString( row, column ).getBytes( UTF_8 );
+		} catch ( UnsupportedEncodingException e ) {
+			throw new AssertionError( e );
+		}
+	}
+	
+	/**
+	 * @return The estimated memory used by the snapshot, in bytes
+	 */
+	public int getSizeInBytes() {
+		return sizeInBytes;
+	}
+	
+	private void checkRow( int row ) {
+		if ( row < 0 || row >= count ) {
+			throw new IndexOutOfBoundsException( "Row " + row + " requested, with a size of " + count );
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.buzzingandroid.content;
+
+import java.util.Arrays;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.support.v4.content.CursorLoader;
+
+/**
+ * Everything that defines the result of a query: the URI, projection, built selection,
+ * selection arguments and sort order. Two equal compiled queries give the same result.<br />
+ * <br />
+ * A compiled query is immutable, so unlike a {@link QueryBuilder} it may be shared freely between
+ * threads and loaders, and used as a key in maps and caches. Create one with {@link QueryBuilder#compile(Uri)}.<br />
+ * <br />
+ * {@link #withArgs(Object...)} binds new arguments to the selection as it was written, without building it again, e.g.<br />
+ * <tt>CompiledQuery byName = new QueryBuilder().select( ... ).whereColumnEquals( "name", "" ).compile( uri );</tt><br />
+ * <tt>Cursor cursor = byName.withArgs( name ).query( context );</tt>
+ * @author Jesper Borgstrup
+ */
+public final class CompiledQuery {
+	
+	final Uri uri;
+	final String[] projection;
+	final String selection;
+	final String[] selectionArgs;
+	final String sortOrder;
+	
+	/*
+	 * The selection as written with the where-methods, before it was normalized, and its number of arguments,
+	 * or -1 if new arguments can't be bound to it. It is not part of the key, since it doesn't change the result.
+	 */
+	private final String template;
+	private final int parameterCount;
+	
+	private final int hashCode;
+	
+	/**
+	 * Creates a query that can't be rebound with {@link #withArgs(Object...)}.
+	 * The arrays are not copied, and must not be modified afterwards
+	 */
+	CompiledQuery( Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder ) {
+		this( uri, projection, selection, selectionArgs, sortOrder, null, -1 );
+	}
+	
+	/**
+	 * The arrays are not copied, and must not be modified afterwards
+	 * @param template The selection as written, to bind the arguments of {@link #withArgs(Object...)} to
+	 * @param parameterCount The number of arguments of the template, or -1 if it can't be rebound
+	 */
+	CompiledQuery( Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder,
+				   String template, int parameterCount ) {
+		this.uri = uri;
+		this.projection = projection;
+		this.selection = selection;
+		this.selectionArgs = selectionArgs;
+		this.sortOrder = sortOrder;
+		this.template = template;
+		this.parameterCount = parameterCount;
+		
+		int hash = uri.hashCode();
+		hash = 31 * hash + Arrays.hashCode( projection );
+		hash = 31 * hash + ( selection == null ? 0 : selection.hashCode() );
+		hash = 31 * hash + Arrays.hashCode( selectionArgs );
+		hash = 31 * hash + ( sortOrder == null ? 0 : sortOrder.hashCode() );
+		this.hashCode = hash;
+	}
+	
+	/**
+	 * Creates a compiled query with the same URI, projection and sort order, and new arguments for the selection.<br />
+	 * <br />
+	 * The arguments are bound to the selection as it was written with the <tt>where</tt>-methods, not as it was
+	 * normalized by {@link QueryBuilder}, since normalizing depends on the values: bounds are merged, equalities
+	 * are united into IN sets, and contradictions are removed. The new query is therefore not normalized,
+	 * and may not be equal to a query compiled from the same values.
+	 * @param args One argument for every value bound by the where-methods and the search, in the order they were given.
+	 * The arguments are converted to strings with <tt>toString()</tt>.
+	 * @return
+	 * @throws IllegalStateException If the query can't be rebound, see {@link #isRebindable()}
+	 * @throws IllegalArgumentException If the number of arguments is different from {@link #getParameterCount()}
+	 */
+	public CompiledQuery withArgs( Object... args ) {
+		if ( parameterCount == -1 ) {
+			throw new IllegalStateException( "The selection binds integer ranges, which only match the values they were written for" );
+		}
+		if ( args.length != parameterCount ) {
+			throw new IllegalArgumentException( "The selection takes " + parameterCount + " arguments, but " + args.length + " were given" );
+		}
+		String[] newArgs = new String[ parameterCount ];
+		for ( int i = 0; i < parameterCount; i++ ) {
+			newArgs[i] = args[i] == null ? null : args[i].toString();
+		}
+		return new CompiledQuery( uri, projection, template, newArgs, sortOrder, template, parameterCount );
+	}
+	
+	/**
+	 * @return Whether new arguments can be bound with {@link #withArgs(Object...)}. That is not the case when a
+	 * <tt>whereColumnInSet</tt> method bound runs of consecutive integers as ranges, since other values wouldn't form the same runs.
+	 */
+	public boolean isRebindable() {
+		return parameterCount != -1;
+	}
+	
+	/**
+	 * @return The number of arguments {@link #withArgs(Object...)} takes, or -1 if the query can't be rebound.
+	 * This may differ from {@link #getSelectionArgCount()}, which counts the arguments of the normalized selection.
+	 */
+	public int getParameterCount() {
+		return parameterCount;
+	}
+	
+	/**
+	 * Queries through the ContentResolver retrieved from the given context
+	 * @param context
+	 * @return
+	 */
+	public Cursor query( Context context ) {
+		return query( context.getContentResolver() );
+	}
+	
+	/**
+	 * Queries through the ContentProviderClient
+	 * @param provider
+	 * @return
+	 * @throws RemoteException May be thrown from {@link ContentProviderClient#query(Uri, String[], String, String[], String)}
+	 */
+	public Cursor query( ContentProviderClient provider ) throws RemoteException {
+		return provider.query( uri, projection, selection, selectionArgs, sortOrder );
+	}
+	
+	/**
+	 * Runs the query through the ContentResolver
+	 * @param resolver
+	 * @return
+	 */
+	Cursor query( ContentResolver resolver ) {
+		return resolver.query( uri, projection, selection, selectionArgs, sortOrder );
+	}
+	
+	/**
+	 * @param context
+	 * @return A CursorLoader for this query
+	 */
+	public CursorLoader createCursorLoader( Context context ) {
+		return new CursorLoader( context, uri, projection, selection, selectionArgs, sortOrder );
+	}
+	
+	public Uri getUri() {
+		return uri;
+	}
+	
+	/**
+	 * @return A copy of the projection
+	 */
+	public String[] getProjection() {
+		return projection.clone();
+	}
+	
+	/**
+	 * @return The selection, or null if there is none
+	 */
+	public String getSelection() {
+		return selection;
+	}
+	
+	/**
+	 * @return A copy of the selection arguments
+	 */
+	public String[] getSelectionArgs() {
+		return selectionArgs == null ? null : selectionArgs.clone();
+	}
+	
+	/**
+	 * @return The number of selection arguments
+	 */
+	public int getSelectionArgCount() {
+		return selectionArgs == null ? 0 : selectionArgs.length;
+	}
+	
+	/**
+	 * @return The sort order, or null if there is none
+	 */
+	public String getSortOrder() {
+		return sortOrder;
+	}
+	
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+	
+	@Override
+	public boolean equals( Object o ) {
+		if ( this == o ) {
+			return true;
+		}
+		if ( !( o instanceof CompiledQuery ) ) {
+			return false;
+		}
+		CompiledQuery other = (CompiledQuery) o;
+		return hashCode == other.hashCode
+				&& uri.equals( other.uri )
+				&& Arrays.equals( projection, other.projection )
+				&& ( selection == null ? other.selection == null : selection.equals( other.selection ) )
+				&& Arrays.equals( selectionArgs, other.selectionArgs )
+				&& ( sortOrder == null ? other.sortOrder == null : sortOrder.equals( other.sortOrder ) );
+	}
+	
+	@Override
+	public String toString() {
+		return uri + " " + Arrays.toString( projection ) + " WHERE " + selection + " " + Arrays.toString( selectionArgs )
+				+ " ORDER BY " + sortOrder;
+	}
+}
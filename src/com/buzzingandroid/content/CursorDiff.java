@@ -0,0 +1,213 @@
+package com.buzzingandroid.content;
+
+import android.database.Cursor;
+import android.provider.BaseColumns;
+
+/**
+ * The row-level differences between two results of the same query, matched by their
+ * {@link BaseColumns#_ID} column, so that a list can be updated with only the rows that changed
+ * instead of being redrawn completely.<br />
+ * <br />
+ * A row is
+ * <ul>
+ * <li><b>removed</b> if its ID is only in the old result,</li>
+ * <li><b>inserted</b> if its ID is only in the new result,</li>
+ * <li><b>moved</b> if its ID is in both, but its position relative to the other rows in both changed.
+ * The fewest rows possible are reported as moved,</li>
+ * <li><b>changed</b> if its ID is in both, but any of its values differ.</li>
+ * </ul>
+ * Computing the difference reads each cursor once, and takes time roughly linear in the number of rows.
+ * Only the IDs and a 64-bit hash of each row are kept in memory. The hash covers the type and every bit
+ * of each value, so rows that only differ in, say, NULL against 0 or "" are still reported as changed.
+ * @author Jesper Borgstrup
+ */
+public final class CursorDiff {
+	
+	private final int[] removed;
+	private final int[] inserted;
+	private final int[] movedFrom;
+	private final int[] movedTo;
+	private final int[] changed;
+	
+	private CursorDiff( int[] removed, int[] inserted, int[] movedFrom, int[] movedTo, int[] changed ) {
+		this.removed = removed;
+		this.inserted = inserted;
+		this.movedFrom = movedFrom;
+		this.movedTo = movedTo;
+		this.changed = changed;
+	}
+	
+	/**
+	 * Computes the differences between the old and the new result. Both must have a {@link BaseColumns#_ID}
+	 * column with unique values. The positions of the cursors are changed, but they are not closed.
+	 * @param oldCursor
+	 * @param newCursor
+	 * @return
+	 */
+	public static CursorDiff compute( Cursor oldCursor, Cursor newCursor ) {
+		final int oldCount = oldCursor.getCount();
+		final int newCount = newCursor.getCount();
+		
+		/*
+		 * Index the old rows by ID
+		 */
+		long[] oldHashes = new long[ oldCount ];
+		LongIntHashMap oldPositions = new LongIntHashMap( oldCount );
+		final int oldIdColumn = oldCursor.getColumnIndexOrThrow( BaseColumns._ID );
+		oldCursor.moveToPosition( -1 );
+		for ( int position = 0; oldCursor.moveToNext(); position++ ) {
+			oldPositions.putIfAbsent( oldCursor.getLong( oldIdColumn ), position );
+			oldHashes[ position ] = CursorSnapshot.rowHash( oldCursor );
+		}
+		
+		/*
+		 * Match the new rows with the old ones
+		 */
+		boolean[] kept = new boolean[ oldCount ];
+		int[] oldPositionOf = new int[ newCount ];
+		int[] inserted = new int[ newCount ];
+		int insertedCount = 0;
+		int[] changed = new int[ newCount ];
+		int changedCount = 0;
+		
+		final int newIdColumn = newCursor.getColumnIndexOrThrow( BaseColumns._ID );
+		newCursor.moveToPosition( -1 );
+		for ( int position = 0; newCursor.moveToNext(); position++ ) {
+			int oldPosition = oldPositions.get( newCursor.getLong( newIdColumn ) );
+			if ( oldPosition == -1 || kept[ oldPosition ] ) {
+				oldPositionOf[ position ] = -1;
+				inserted[ insertedCount++ ] = position;
+				continue;
+			}
+			kept[ oldPosition ] = true;
+			oldPositionOf[ position ] = oldPosition;
+			if ( CursorSnapshot.rowHash( newCursor ) != oldHashes[ oldPosition ] ) {
+				changed[ changedCount++ ] = position;
+			}
+		}
+		
+		int[] removed = new int[ oldCount - ( newCount - insertedCount ) ];
+		int removedCount = 0;
+		for ( int position = 0; position < oldCount; position++ ) {
+			if ( !kept[ position ] ) {
+				removed[ removedCount++ ] = position;
+			}
+		}
+		
+		/*
+		 * The kept rows that are in increasing old order in the new result stay in place.
+		 * Keeping the longest such sequence in place gives the fewest moves.
+		 */
+		boolean[] inPlace = longestIncreasingSubsequence( oldPositionOf );
+		int movedCount = 0;
+		for ( int position = 0; position < newCount; position++ ) {
+			if ( oldPositionOf[ position ] != -1 && !inPlace[ position ] ) {
+				movedCount++;
+			}
+		}
+		int[] movedFrom = new int[ movedCount ];
+		int[] movedTo = new int[ movedCount ];
+		movedCount = 0;
+		for ( int position = 0; position < newCount; position++ ) {
+			if ( oldPositionOf[ position ] != -1 && !inPlace[ position ] ) {
+				movedFrom[ movedCount ] = oldPositionOf[ position ];
+				movedTo[ movedCount ] = position;
+				movedCount++;
+			}
+		}
+		
+		return new CursorDiff( removed, trim( inserted, insertedCount ), movedFrom, movedTo, trim( changed, changedCount ) );
+	}
+	
+	/**
+	 * Finds a longest strictly increasing subsequence of the non-negative values, in O(n log n) time
+	 * @param values Values, where -1 values are skipped
+	 * @return For each index, whether it is part of the subsequence
+	 */
+	private static boolean[] longestIncreasingSubsequence( int[] values ) {
+		final int n = values.length;
+		// tails[k] is the index of the smallest tail of an increasing subsequence of length k+1
+		int[] tails = new int[ n ];
+		int[] previous = new int[ n ];
+		int length = 0;
+		for ( int i = 0; i < n; i++ ) {
+			if ( values[i] == -1 ) {
+				continue;
+			}
+			int low = 0;
+			int high = length;
+			while ( low < high ) {
+				int middle = ( low + high ) >>> 1;
+				if ( values[ tails[ middle ] ] < values[i] ) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			previous[i] = low > 0 ? tails[ low - 1 ] : -1;
+			tails[ low ] = i;
+			if ( low == length ) {
+				length++;
+			}
+		}
+		
+		boolean[] inSubsequence = new boolean[ n ];
+		for ( int i = length > 0 ? tails[ length - 1 ] : -1; i != -1; i = previous[i] ) {
+			inSubsequence[i] = true;
+		}
+		return inSubsequence;
+	}
+	
+	private static int[] trim( int[] array, int length ) {
+		if ( array.length == length ) {
+			return array;
+		}
+		int[] trimmed = new int[ length ];
+		System.arraycopy( array, 0, trimmed, 0, length );
+		return trimmed;
+	}
+	
+	/**
+	 * @return The positions in the old result of the removed rows, in increasing order
+	 */
+	public int[] getRemovedPositions() {
+		return removed;
+	}
+	
+	/**
+	 * @return The positions in the new result of the inserted rows, in increasing order
+	 */
+	public int[] getInsertedPositions() {
+		return inserted;
+	}
+	
+	/**
+	 * @return The positions in the old result of the moved rows. The row at index <tt>i</tt>
+	 * moved to {@link #getMovedToPositions()}<tt>[i]</tt>.
+	 */
+	public int[] getMovedFromPositions() {
+		return movedFrom;
+	}
+	
+	/**
+	 * @return The positions in the new result of the moved rows, in increasing order
+	 */
+	public int[] getMovedToPositions() {
+		return movedTo;
+	}
+	
+	/**
+	 * @return The positions in the new result of the rows whose values changed, in increasing order.
+	 * A row may be both moved and changed.
+	 */
+	public int[] getChangedPositions() {
+		return changed;
+	}
+	
+	/**
+	 * @return Whether the two results are identical
+	 */
+	public boolean isEmpty() {
+		return removed.length == 0 && inserted.length == 0 && movedFrom.length == 0 && changed.length == 0;
+	}
+}
@@ -0,0 +1,274 @@
+package com.buzzingandroid.content;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+
+/**
+ * An in-memory copy of all rows in a cursor, from which any number of independent
+ * cursors can be created
+ * @author Jesper Borgstrup
+ */
+final class CursorSnapshot {
+	
+	/*
+	 * Rough sizes in bytes of the objects in a snapshot, for memory budgets
+	 */
+	private static final int OBJECT_SIZE = 16;
+	private static final int REFERENCE_SIZE = 4;
+	
+	private final String[] columnNames;
+	private final Object[][] rows;
+	private final int sizeInBytes;
+	
+	private CursorSnapshot( String[] columnNames, Object[][] rows, int sizeInBytes ) {
+		this.columnNames = columnNames;
+		this.rows = rows;
+		this.sizeInBytes = sizeInBytes;
+	}
+	
+	/**
+	 * Copies every row of the cursor. The cursor position is changed, and the cursor is not closed.<br />
+	 * <br />
+	 * On Android 3.0 and newer, integers, floats and blobs keep their type. On older versions
+	 * every value is copied as a string.
+	 * @param cursor
+	 * @return
+	 */
+	static CursorSnapshot read( Cursor cursor ) {
+		return read( cursor, Integer.MAX_VALUE );
+	}
+	
+	/**
+	 * Copies every row of the cursor, unless the copy would use more memory than allowed.
+	 * The cursor position is changed, and the cursor is not closed.
+	 * @param cursor
+	 * @param maxBytes The maximum estimated size of the snapshot, in bytes
+	 * @return The snapshot, or null if it would be larger than maxBytes. Reading stops as soon as that is known.
+	 */
+	static CursorSnapshot read( Cursor cursor, int maxBytes ) {
+		final String[] columnNames = cursor.getColumnNames();
+		final int count = cursor.getCount();
+		final boolean typed = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+		
+		long size = OBJECT_SIZE + (long) count * REFERENCE_SIZE;
+		if ( size > maxBytes ) {
+			return null;
+		}
+		final Object[][] rows = new Object[ count ][];
+		cursor.moveToPosition( -1 );
+		for ( int row = 0; row < rows.length && cursor.moveToNext(); row++ ) {
+			Object[] values = new Object[ columnNames.length ];
+			for ( int column = 0; column < values.length; column++ ) {
+				values[ column ] = typed ? readTypedValue( cursor, column ) : cursor.getString( column );
+				size += sizeOf( values[ column ] );
+			}
+			if ( size > maxBytes ) {
+				return null;
+			}
+			rows[ row ] = values;
+		}
+		return new CursorSnapshot( columnNames, rows, (int) size );
+	}
+	
+	/**
+	 * @param value A value read from a cursor
+	 * @return The estimated memory used by the value, in bytes
+	 */
+	static int sizeOf( Object value ) {
+		if ( value == null ) {
+			return REFERENCE_SIZE;
+		} else if ( value instanceof String ) {
+			return REFERENCE_SIZE + 2 * OBJECT_SIZE + 2 * ( (String) value ).length();
+		} else if ( value instanceof byte[] ) {
+			return REFERENCE_SIZE + OBJECT_SIZE + ( (byte[]) value ).length;
+		} else {
+			return REFERENCE_SIZE + OBJECT_SIZE;
+		}
+	}
+	
+	/**
+	 * Computes a 64-bit hash of the column names and every value in the cursor, so that two
+	 * results can be compared without keeping both in memory. The cursor position is changed.
+	 * @param cursor
+	 * @return
+	 */
+	static long contentHash( Cursor cursor ) {
+		final String[] columnNames = cursor.getColumnNames();
+		final boolean typed = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+		
+		long hash = HASH_OFFSET;
+		for ( String columnName: columnNames ) {
+			hash = hashString( hash, columnName );
+		}
+		hash = hashLong( hash, cursor.getCount() );
+		
+		cursor.moveToPosition( -1 );
+		while ( cursor.moveToNext() ) {
+			hash = hashLong( hash, rowHash( cursor, typed ) );
+		}
+		return hash;
+	}
+	
+	/**
+	 * Computes a 64-bit hash of every value in the current row of the cursor
+	 * @param cursor
+	 * @return
+	 */
+	static long rowHash( Cursor cursor ) {
+		return rowHash( cursor, Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB );
+	}
+	
+	private static long rowHash( Cursor cursor, boolean typed ) {
+		final int columnCount = cursor.getColumnCount();
+		long hash = HASH_OFFSET;
+		for ( int column = 0; column < columnCount; column++ ) {
+			Object value = typed ? readTypedValue( cursor, column ) : cursor.getString( column );
+			hash = hashValue( hash, value );
+		}
+		return hash;
+	}
+	
+	/*
+	 * FNV-1a, fed with a type tag and every bit of each value, so that values which only
+	 * differ in type or in their high bits, like NULL, 0 and "", give different hashes
+	 */
+	private static final long HASH_OFFSET = 0xcbf29ce484222325L;
+	private static final long HASH_PRIME = 0x100000001b3L;
+	
+	private static final int TAG_NULL = 0;
+	private static final int TAG_INTEGER = 1;
+	private static final int TAG_FLOAT = 2;
+	private static final int TAG_STRING = 3;
+	private static final int TAG_BLOB = 4;
+	
+	private static long hashValue( long hash, Object value ) {
+		if ( value == null ) {
+			return hashByte( hash, TAG_NULL );
+		} else if ( value instanceof Long ) {
+			return hashLong( hashByte( hash, TAG_INTEGER ), (Long) value );
+		} else if ( value instanceof Double ) {
+			return hashLong( hashByte( hash, TAG_FLOAT ), Double.doubleToLongBits( (Double) value ) );
+		} else if ( value instanceof byte[] ) {
+			byte[] bytes = (byte[]) value;
+			hash = hashLong( hashByte( hash, TAG_BLOB ), bytes.length );
+			for ( byte b: bytes ) {
+				hash = hashByte( hash, b );
+			}
+			return hash;
+		}
+		return hashString( hashByte( hash, TAG_STRING ), value.toString() );
+	}
+	
+	private static long hashString( long hash, String value ) {
+		final int length = value.length();
+		hash = hashLong( hash, length );
+		for ( int i = 0; i < length; i++ ) {
+			char c = value.charAt( i );
+			hash = hashByte( hashByte( hash, c ), c >>> 8 );
+		}
+		return hash;
+	}
+	
+	private static long hashLong( long hash, long value ) {
+		for ( int i = 0; i < 8; i++ ) {
+			hash = hashByte( hash, (int) value );
+			value >>>= 8;
+		}
+		return hash;
+	}
+	
+	private static long hashByte( long hash, int value ) {
+		return ( hash ^ ( value & 0xff ) ) * HASH_PRIME;
+	}
+	
+	/**
+	 * Reads a value from the current row of the cursor. On Android 3.0 and newer the value keeps its type.
+	 * On older versions it is read as a string, or as a blob if it can't be read as a string.
+	 * @param cursor
+	 * @param column
+	 * @return
+	 */
+	static Object readValue( Cursor cursor, int column ) {
+		if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ) {
+			return readTypedValue( cursor, column );
+		}
+		try {
+			return cursor.getString( column );
+		} catch ( SQLiteException e ) {
+			return cursor.getBlob( column );
+		}
+	}
+	
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static Object readTypedValue( Cursor cursor, int column ) {
+		switch ( cursor.getType( column ) ) {
+		case Cursor.FIELD_TYPE_NULL:
+			return null;
+		case Cursor.FIELD_TYPE_INTEGER:
+			return cursor.getLong( column );
+		case Cursor.FIELD_TYPE_FLOAT:
+			return cursor.getDouble( column );
+		case Cursor.FIELD_TYPE_BLOB:
+			return cursor.getBlob( column );
+		default:
+			return cursor.getString( column );
+		}
+	}
+	
+	String[] getColumnNames() {
+		return columnNames;
+	}
+	
+	int getCount() {
+		return rows.length;
+	}
+	
+	/**
+	 * @return The estimated memory used by the snapshot, in bytes
+	 */
+	int getSizeInBytes() {
+		return sizeInBytes;
+	}
+	
+	/**
+	 * @param row
+	 * @param column
+	 * @return The value as a string, or null
+	 */
+	String getString( int row, int column ) {
+		Object value = rows[ row ][ column ];
+		return value == null ? null : value.toString();
+	}
+	
+	/**
+	 * @param rowIndexes
+	 * @param count The number of row indexes to use
+	 * @return A snapshot with the specified rows of this snapshot, in the order given.
+	 * The rows are shared, not copied.
+	 */
+	CursorSnapshot select( int[] rowIndexes, int count ) {
+		Object[][] selected = new Object[ count ][];
+		int size = OBJECT_SIZE + count * REFERENCE_SIZE;
+		for ( int i = 0; i < count; i++ ) {
+			selected[i] = rows[ rowIndexes[i] ];
+			for ( Object value: selected[i] ) {
+				size += sizeOf( value );
+			}
+		}
+		return new CursorSnapshot( columnNames, selected, size );
+	}
+	
+	/**
+	 * @return A new cursor over the rows of this snapshot
+	 */
+	Cursor newCursor() {
+		MatrixCursor cursor = new MatrixCursor( columnNames, rows.length );
+		for ( Object[] row: rows ) {
+			cursor.addRow( row );
+		}
+		return cursor;
+	}
+}
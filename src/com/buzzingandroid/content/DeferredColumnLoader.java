@@ -0,0 +1,371 @@
+package com.buzzingandroid.content;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BaseColumns;
+import android.support.v4.util.LruCache;
+
+import com.buzzingandroid.content.AsyncQueryExecutor.Priority;
+import com.buzzingandroid.content.QueryBuilder.InSetMode;
+
+/**
+ * Loads heavy columns, like images stored as blobs, only for the rows that are actually shown.
+ * The columns are marked with {@link QueryBuilder#selectDeferred(String...)}, and left out of the
+ * main query, keeping its cursor windows small.<br />
+ * <br />
+ * When a value of a row that isn't loaded is read, the row is requested and null is returned.
+ * All rows requested while the thread that created the loader handles one message, e.g. while
+ * a list lays out its visible rows, are then loaded in the background in a single query by ID,
+ * after which the {@link LoadListener} is told, e.g. to redraw the rows.<br />
+ * <br />
+ * Loaded rows are kept in a cache of limited size, least recently used rows being removed first.
+ * Besides the cache, the rows of the last load and the rows read since the load before it, i.e.
+ * the rows on screen, are kept until the next load is delivered. A listener that redraws every
+ * visible row therefore finds them loaded, even when they don't all fit in the cache, instead of
+ * requesting the rows the last load pushed out of the cache again and again.<br />
+ * <br />
+ * Except for {@link #load(long...)}, a loader must only be used on the thread that created it.
+ * @author Jesper Borgstrup
+ */
+public final class DeferredColumnLoader {
+	
+	public static final int DEFAULT_CACHE_BYTES = 1024 * 1024;
+	
+	public interface LoadListener {
+		/**
+		 * Called on the thread that created the loader when requested rows are loaded
+		 * @param ids The IDs of the loaded rows. They can be read until the next rows are loaded.
+		 */
+		public void deferredColumnsLoaded( long[] ids );
+	}
+	
+	/*
+	 * Rough size in bytes of a cache entry besides its values
+	 */
+	private static final int ENTRY_SIZE = 64;
+	
+	private final Context context;
+	private final Uri uri;
+	private final String[] columns;
+	private final String[] projection;
+	private final AsyncQueryExecutor executor;
+	private final Handler handler;
+	private final LruCache<Long, Object[]> cache;
+	
+	private LoadListener listener;
+	
+	/*
+	 * The rows requested but not loaded yet, and those of them not yet being loaded
+	 */
+	private final HashSet<Long> requested = new HashSet<Long>();
+	private long[] pending = new long[ 16 ];
+	private int pendingCount;
+	private final ArrayList<CancellationToken> loading = new ArrayList<CancellationToken>();
+	
+	/*
+	 * The rows of the last delivered load and the rows read before it, and the rows read since.
+	 * They are kept even if they are removed from the cache, until the next load is delivered.
+	 */
+	private HashMap<Long, Object[]> pinned = new HashMap<Long, Object[]>();
+	private HashMap<Long, Object[]> read = new HashMap<Long, Object[]>();
+	
+	private final Runnable loadPending = new Runnable() {
+		public void run() {
+			loadPending();
+		}
+	};
+	
+	/**
+	 * Must be created on a thread with a Looper
+	 * @param context
+	 * @param uri
+	 * @param columns The deferred columns
+	 * @param executor The executor to load rows on
+	 * @param cacheBytes The maximum size of the cache in bytes
+	 */
+	DeferredColumnLoader( Context context, Uri uri, String[] columns, AsyncQueryExecutor executor, int cacheBytes ) {
+		Looper looper = Looper.myLooper();
+		if ( looper == null ) {
+			throw new IllegalStateException( "DeferredColumnLoader must be created on a thread with a Looper" );
+		}
+		this.context = context.getApplicationContext();
+		this.uri = uri;
+		this.columns = columns;
+		this.projection = new String[ columns.length + 1 ];
+		projection[0] = BaseColumns._ID;
+		System.arraycopy( columns, 0, projection, 1, columns.length );
+		this.executor = executor;
+		this.handler = new Handler( looper );
+		this.cache = new LruCache<Long, Object[]>( cacheBytes ) {
+			@Override
+			protected int sizeOf( Long id, Object[] values ) {
+				int size = ENTRY_SIZE;
+				for ( Object value: values ) {
+					size += CursorSnapshot.sizeOf( value );
+				}
+				return size;
+			}
+		};
+	}
+	
+	/**
+	 * Sets the listener told when requested rows are loaded
+	 * @param listener
+	 * @return The DeferredColumnLoader instance for chaining method calls
+	 */
+	public DeferredColumnLoader setLoadListener( LoadListener listener ) {
+		this.listener = listener;
+		return this;
+	}
+	
+	/**
+	 * @param column The name of a deferred column
+	 * @return The index of the column, for the getters, or -1 if it isn't deferred
+	 */
+	public int getColumnIndex( String column ) {
+		for ( int i = 0; i < columns.length; i++ ) {
+			if ( columns[i].equals( column ) ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param id
+	 * @return Whether the deferred columns of the row are loaded. A row that doesn't exist counts as loaded,
+	 * with null values.
+	 */
+	public boolean isLoaded( long id ) {
+		return getLoaded( id ) != null;
+	}
+	
+	/**
+	 * @param id
+	 * @return The values of the row from the cache or the pinned rows, or null if it isn't loaded
+	 */
+	private Object[] getLoaded( long id ) {
+		Object[] values = cache.get( id );
+		return values != null ? values : pinned.get( id );
+	}
+	
+	/**
+	 * Reads a deferred value, requesting the row if it isn't loaded
+	 * @param id
+	 * @param column The index of the deferred column
+	 * @return The value, or null if the value is null or the row isn't loaded
+	 * @see #getColumnIndex(String)
+	 */
+	public Object getValue( long id, int column ) {
+		Object[] values = getLoaded( id );
+		if ( values == null ) {
+			request( id );
+			return null;
+		}
+		read.put( id, values );
+		return values[ column ];
+	}
+	
+	/**
+	 * Reads a deferred value as a string, requesting the row if it isn't loaded
+	 * @param id
+	 * @param column The index of the deferred column
+	 * @return The value, or null if the value is null or the row isn't loaded
+	 */
+	public String getString( long id, int column ) {
+		Object value = getValue( id, column );
+		if ( value instanceof byte[] ) {
+			throw new IllegalStateException( "Column " + columns[ column ] + " of row " + id + " is a blob" );
+		}
+		return value == null ? null : value.toString();
+	}
+	
+	/**
+	 * Reads a deferred value as a blob, requesting the row if it isn't loaded. Strings are encoded as UTF-8.
+	 * The returned array is shared, and must not be changed.
+	 * @param id
+	 * @param column The index of the deferred column
+	 * @return The value, or null if the value is null or the row isn't loaded
+	 */
+	public byte[] getBlob( long id, int column ) {
+		Object value = getValue( id, column );
+		if ( value == null || value instanceof byte[] ) {
+			return (byte[]) value;
+		}
+		try {
+			return value.toString().getBytes( "UTF-8" );
+		} catch ( UnsupportedEncodingException e ) {
+			throw new AssertionError( e );
+		}
+	}
+	
+	/**
+	 * Requests the deferred columns of a row. Rows requested while the current message is handled
+	 * are loaded together in the background.
+	 * @param id
+	 */
+	public void request( long id ) {
+		if ( getLoaded( id ) != null || !requested.add( id ) ) {
+			return;
+		}
+		if ( pendingCount == pending.length ) {
+			long[] grown = new long[ pendingCount * 2 ];
+			System.arraycopy( pending, 0, grown, 0, pendingCount );
+			pending = grown;
+		}
+		pending[ pendingCount++ ] = id;
+		if ( pendingCount == 1 ) {
+			handler.post( loadPending );
+		}
+	}
+	
+	private void loadPending() {
+		final long[] ids = new long[ pendingCount ];
+		System.arraycopy( pending, 0, ids, 0, pendingCount );
+		pendingCount = 0;
+		
+		final CancellationToken[] token = new CancellationToken[1];
+		token[0] = executor.submit( Priority.VISIBLE, new AsyncQueryExecutor.Task<HashMap<Long, Object[]>>() {
+			@Override
+			protected HashMap<Long, Object[]> run() {
+				return loadMissing( ids );
+			}
+			
+			@Override
+			protected void deliver( HashMap<Long, Object[]> loaded ) {
+				// Failed loads can be requested again
+				if ( !finish( ids, token[0] ) || loaded == null ) {
+					return;
+				}
+				// Keep the loaded rows and the rows on screen, even if the cache can't hold them all
+				loaded.putAll( read );
+				pinned = loaded;
+				read = new HashMap<Long, Object[]>();
+				if ( listener != null ) {
+					listener.deferredColumnsLoaded( ids );
+				}
+			}
+			
+			@Override
+			protected void discard( HashMap<Long, Object[]> loaded ) {
+				finish( ids, token[0] );
+			}
+		} );
+		loading.add( token[0] );
+	}
+	
+	/**
+	 * Stops tracking the rows of a load, so they can be requested again
+	 * @param ids
+	 * @param token
+	 * @return Whether the load was still tracked. If it was cancelled, its rows may have been requested again
+	 * since, by a load that tracks them now.
+	 */
+	private boolean finish( long[] ids, CancellationToken token ) {
+		if ( !loading.remove( token ) ) {
+			return false;
+		}
+		for ( long id: ids ) {
+			requested.remove( id );
+		}
+		return true;
+	}
+	
+	/**
+	 * Loads the deferred columns of the rows that aren't loaded, in one query. May be called on any thread
+	 * but the main thread, e.g. to load rows ahead of time.
+	 * @param ids
+	 */
+	public void load( long... ids ) {
+		loadMissing( ids );
+	}
+	
+	/**
+	 * Loads the deferred columns of the rows that aren't in the cache, in one query
+	 * @param ids
+	 * @return The values of all the rows, or null if the query failed
+	 */
+	private HashMap<Long, Object[]> loadMissing( long[] ids ) {
+		HashMap<Long, Object[]> loaded = new HashMap<Long, Object[]>();
+		long[] missing = new long[ ids.length ];
+		int missingCount = 0;
+		for ( long id: ids ) {
+			Object[] values = cache.get( id );
+			if ( values == null ) {
+				missing[ missingCount++ ] = id;
+			} else {
+				loaded.put( id, values );
+			}
+		}
+		if ( missingCount == 0 ) {
+			return loaded;
+		}
+		if ( missingCount < missing.length ) {
+			long[] trimmed = new long[ missingCount ];
+			System.arraycopy( missing, 0, trimmed, 0, missingCount );
+			missing = trimmed;
+		}
+		
+		Cursor cursor = new QueryBuilder()
+			.setInSetMode( InSetMode.BOUND )
+			.whereColumnInSet( BaseColumns._ID, missing )
+			.select( projection )
+			.query( context, uri );
+		if ( cursor == null ) {
+			return null;
+		}
+		try {
+			while ( cursor.moveToNext() ) {
+				Object[] values = new Object[ columns.length ];
+				for ( int column = 0; column < values.length; column++ ) {
+					values[ column ] = CursorSnapshot.readValue( cursor, column + 1 );
+				}
+				long id = cursor.getLong( 0 );
+				cache.put( id, values );
+				loaded.put( id, values );
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		// Remember rows that don't exist, so they aren't requested again
+		for ( long id: missing ) {
+			if ( !loaded.containsKey( id ) ) {
+				Object[] values = new Object[ columns.length ];
+				cache.put( id, values );
+				loaded.put( id, values );
+			}
+		}
+		return loaded;
+	}
+	
+	/**
+	 * Stops loading requested rows. Rows requested later are loaded as usual.
+	 */
+	public void cancel() {
+		handler.removeCallbacks( loadPending );
+		pendingCount = 0;
+		for ( CancellationToken token: new ArrayList<CancellationToken>( loading ) ) {
+			token.cancel();
+		}
+		loading.clear();
+		requested.clear();
+	}
+	
+	/**
+	 * Removes all loaded rows, e.g. after the deferred columns have changed
+	 */
+	public void clear() {
+		cache.evictAll();
+		pinned = new HashMap<Long, Object[]>();
+		read = new HashMap<Long, Object[]>();
+	}
+}
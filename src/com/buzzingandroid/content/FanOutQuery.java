@@ -0,0 +1,138 @@
+package com.buzzingandroid.content;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Process;
+
+/**
+ * Runs the query of a {@link QueryBuilder} on several URIs at the same time.<br />
+ * <br />
+ * The first URI is queried on the calling thread, and the rest on a shared pool of
+ * {@link #POOL_SIZE} background threads. Each query runs on its own copy of the QueryBuilder.
+ * @author Jesper Borgstrup
+ */
+final class FanOutQuery {
+	
+	static final int POOL_SIZE = 4;
+	
+	private static ThreadPoolExecutor executor;
+	
+	private FanOutQuery() {}
+	
+	/**
+	 * The threads are kept when idle, since they can't time out before Android 2.3
+	 */
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if ( executor == null ) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			ThreadFactory threadFactory = new ThreadFactory() {
+				public Thread newThread( final Runnable r ) {
+					Thread thread = new Thread( new Runnable() {
+						public void run() {
+							Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+							r.run();
+						}
+					}, "FanOutQuery #" + threadCount.incrementAndGet() );
+					thread.setDaemon( true );
+					return thread;
+				}
+			};
+			executor = new ThreadPoolExecutor( POOL_SIZE, POOL_SIZE, 0, TimeUnit.MILLISECONDS,
+											   new LinkedBlockingQueue<Runnable>(), threadFactory );
+		}
+		return executor;
+	}
+	
+	/**
+	 * Queries every URI and waits for all the queries to finish
+	 * @param context
+	 * @param builder The QueryBuilder to query with. It is copied on the calling thread, and not used afterwards.
+	 * @param uris
+	 * @return A cursor for every URI, in the same order, or null if any query returned null.
+	 * If any query throws, the other cursors are closed and the exception is rethrown.
+	 */
+	static Cursor[] query( final Context context, QueryBuilder builder, Uri[] uris ) {
+		@SuppressWarnings("unchecked")
+		Future<Cursor>[] futures = new Future[ uris.length ];
+		for ( int i = 1; i < uris.length; i++ ) {
+			final QueryBuilder copy = new QueryBuilder( builder );
+			final Uri uri = uris[i];
+			futures[i] = getExecutor().submit( new Callable<Cursor>() {
+				public Cursor call() {
+					return fill( copy.query( context, uri ) );
+				}
+			} );
+		}
+		
+		/*
+		 * Wait for every query, also after one failed, so that no cursor is left unclosed
+		 */
+		Cursor[] cursors = new Cursor[ uris.length ];
+		RuntimeException error = null;
+		try {
+			cursors[0] = fill( new QueryBuilder( builder ).query( context, uris[0] ) );
+		} catch ( RuntimeException e ) {
+			error = e;
+		}
+		boolean interrupted = false;
+		for ( int i = 1; i < uris.length; i++ ) {
+			while ( true ) {
+				try {
+					cursors[i] = futures[i].get();
+					break;
+				} catch ( InterruptedException e ) {
+					interrupted = true;
+				} catch ( ExecutionException e ) {
+					if ( error == null ) {
+						error = e.getCause() instanceof RuntimeException
+								? (RuntimeException) e.getCause()
+								: new RuntimeException( e.getCause() );
+					}
+					break;
+				}
+			}
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+		
+		boolean complete = error == null;
+		for ( Cursor cursor: cursors ) {
+			complete &= cursor != null;
+		}
+		if ( !complete ) {
+			for ( Cursor cursor: cursors ) {
+				if ( cursor != null ) {
+					cursor.close();
+				}
+			}
+			if ( error != null ) {
+				throw error;
+			}
+			return null;
+		}
+		return cursors;
+	}
+	
+	/**
+	 * Run the query of a lazily executed cursor here, so it runs in parallel with the other queries
+	 * @param cursor
+	 * @return The cursor
+	 */
+	private static Cursor fill( Cursor cursor ) {
+		if ( cursor != null ) {
+			cursor.getCount();
+		}
+		return cursor;
+	}
+}
@@ -0,0 +1,155 @@
+package com.buzzingandroid.content;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.provider.BaseColumns;
+
+/**
+ * A full-text (FTS) shadow table that indexes some columns of a regular table,
+ * to be searched with {@link QueryBuilder.SearchMode#FULL_TEXT}.<br />
+ * <br />
+ * The <tt>docid</tt> of each row in the full-text table is the {@link BaseColumns#_ID} of the row
+ * it indexes. Triggers on the regular table keep the full-text table up to date on inserts,
+ * updates and deletes.<br />
+ * <br />
+ * Create the table in your <tt>SQLiteOpenHelper.onCreate()</tt> after the regular table,
+ * and call {@link #rebuild(SQLiteDatabase)} if the regular table already holds rows:
+ * <pre>
+ * FullTextSearchTable contactsSearch = new FullTextSearchTable( "contacts", "name", "email" );
+ * contactsSearch.create( db );
+ * </pre>
+ * And to search it:
+ * <pre>
+ * new QueryBuilder()
+ *     .setSearchColumns( contactsSearch.getColumns() )
+ *     .setSearchMode( SearchMode.FULL_TEXT )
+ *     .setFullTextTable( contactsSearch.getName() )
+ *     .setSearchQuery( query )
+ * </pre>
+ * @author Jesper Borgstrup
+ */
+public class FullTextSearchTable {
+	
+	private final String contentTable;
+	private final String name;
+	private final String[] columns;
+	
+	/**
+	 * Create a full-text table named <tt>[contentTable]_fts</tt>
+	 * @param contentTable The regular table holding the rows
+	 * @param columns The columns of the regular table to index
+	 */
+	public FullTextSearchTable( String contentTable, String... columns ) {
+		this( contentTable, contentTable + "_fts", columns );
+	}
+	
+	/**
+	 * @param contentTable The regular table holding the rows
+	 * @param name The name of the full-text table
+	 * @param columns The columns of the regular table to index
+	 */
+	public FullTextSearchTable( String contentTable, String name, String... columns ) {
+		if ( columns.length == 0 ) {
+			throw new IllegalArgumentException( "A full-text table needs at least one column" );
+		}
+		this.contentTable = contentTable;
+		this.name = name;
+		this.columns = columns.clone();
+	}
+	
+	/**
+	 * @return The name of the full-text table, to be passed to {@link QueryBuilder#setFullTextTable(String)}
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return The indexed columns, to be passed to {@link QueryBuilder#setSearchColumns(String...)}
+	 */
+	public String[] getColumns() {
+		return columns.clone();
+	}
+	
+	/**
+	 * Creates the full-text table and the triggers that keep it up to date, if they don't exist.<br />
+	 * <br />
+	 * FTS4 is used where available (Android 3.0 and newer), FTS3 otherwise.<br />
+	 * <br />
+	 * The insert trigger removes any indexed row with the same ID before indexing the new row. When an
+	 * <tt>INSERT OR REPLACE</tt> (or {@link SQLiteDatabase#CONFLICT_REPLACE}) replaces a row, the delete
+	 * trigger doesn't fire for the replaced row, so it would otherwise still be indexed and make the
+	 * insert fail. This is done with a <tt>DELETE</tt> rather than <tt>INSERT OR REPLACE</tt>, which full-text
+	 * tables only support from SQLite 3.7.7. A replaced row with another ID stays in the full-text table until
+	 * its ID is reused or the table is rebuilt, but it never matches a row of the regular table.
+	 * @param db
+	 */
+	public void create( SQLiteDatabase db ) {
+		final String module = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ? "fts4" : "fts3";
+		final String columnList = join( "", columns );
+		final String newColumnList = join( "new.", columns );
+		
+		db.execSQL( "CREATE VIRTUAL TABLE IF NOT EXISTS " + name + " USING " + module + "(" + columnList + ")" );
+		
+		db.execSQL( "CREATE TRIGGER IF NOT EXISTS " + name + "_insert AFTER INSERT ON " + contentTable + " BEGIN "
+				+ "DELETE FROM " + name + " WHERE docid=new." + BaseColumns._ID + "; "
+				+ "INSERT INTO " + name + "(docid," + columnList + ") VALUES (new." + BaseColumns._ID + "," + newColumnList + "); "
+				+ "END" );
+		
+		db.execSQL( "CREATE TRIGGER IF NOT EXISTS " + name + "_update AFTER UPDATE OF " + BaseColumns._ID + "," + columnList + " ON " + contentTable + " BEGIN "
+				+ "DELETE FROM " + name + " WHERE docid=old." + BaseColumns._ID + "; "
+				+ "INSERT INTO " + name + "(docid," + columnList + ") VALUES (new." + BaseColumns._ID + "," + newColumnList + "); "
+				+ "END" );
+		
+		db.execSQL( "CREATE TRIGGER IF NOT EXISTS " + name + "_delete AFTER DELETE ON " + contentTable + " BEGIN "
+				+ "DELETE FROM " + name + " WHERE docid=old." + BaseColumns._ID + "; "
+				+ "END" );
+	}
+	
+	/**
+	 * Drops the full-text table and its triggers, if they exist
+	 * @param db
+	 */
+	public void drop( SQLiteDatabase db ) {
+		db.execSQL( "DROP TRIGGER IF EXISTS " + name + "_insert" );
+		db.execSQL( "DROP TRIGGER IF EXISTS " + name + "_update" );
+		db.execSQL( "DROP TRIGGER IF EXISTS " + name + "_delete" );
+		db.execSQL( "DROP TABLE IF EXISTS " + name );
+	}
+	
+	/**
+	 * Re-indexes every row of the regular table in a single transaction.<br />
+	 * <br />
+	 * Call this after creating the full-text table for a regular table that already holds rows,
+	 * or after changing the regular table without the triggers, e.g. while they were dropped.
+	 * @param db
+	 */
+	public void rebuild( SQLiteDatabase db ) {
+		final String columnList = join( "", columns );
+		db.beginTransaction();
+		try {
+			db.execSQL( "DELETE FROM " + name );
+			db.execSQL( "INSERT INTO " + name + "(docid," + columnList + ") SELECT " + BaseColumns._ID + "," + columnList + " FROM " + contentTable );
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	/**
+	 * Join the columns with commas, each with the specified prefix
+	 * @param prefix
+	 * @param columns
+	 * @return
+	 */
+	private static String join( String prefix, String[] columns ) {
+		StringBuilder sb = new StringBuilder();
+		for ( int i = 0; i < columns.length; i++ ) {
+			if ( i > 0 ) {
+				sb.append( ',' );
+			}
+			sb.append( prefix ).append( columns[i] );
+		}
+		return sb.toString();
+	}
+}
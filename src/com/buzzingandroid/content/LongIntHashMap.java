@@ -0,0 +1,81 @@
+package com.buzzingandroid.content;
+
+/**
+ * A map from longs to non-negative ints, stored in two primitive arrays with open addressing,
+ * so no objects are allocated per entry. Used for looking up row positions by ID.
+ * @author Jesper Borgstrup
+ */
+final class LongIntHashMap {
+	
+	private static final int FREE = -1;
+	
+	private final long[] keys;
+	private final int[] values;
+	private final int mask;
+	private int size;
+	
+	/**
+	 * @param expectedSize The number of entries to make room for. The map can't grow beyond this.
+	 */
+	LongIntHashMap( int expectedSize ) {
+		// Keep the load factor at or below 0.5
+		int capacity = Integer.highestOneBit( Math.max( 2, expectedSize ) * 2 - 1 ) << 1;
+		keys = new long[ capacity ];
+		values = new int[ capacity ];
+		mask = capacity - 1;
+		for ( int i = 0; i < capacity; i++ ) {
+			values[i] = FREE;
+		}
+	}
+	
+	/**
+	 * Maps the key to the value, unless the key is already mapped
+	 * @param key
+	 * @param value Must be non-negative
+	 * @return false if the key was already mapped
+	 */
+	boolean putIfAbsent( long key, int value ) {
+		int slot = slot( key );
+		while ( values[ slot ] != FREE ) {
+			if ( keys[ slot ] == key ) {
+				return false;
+			}
+			slot = ( slot + 1 ) & mask;
+		}
+		if ( size == expectedCapacity() ) {
+			throw new IllegalStateException( "LongIntHashMap is full" );
+		}
+		keys[ slot ] = key;
+		values[ slot ] = value;
+		size++;
+		return true;
+	}
+	
+	/**
+	 * @param key
+	 * @return The value, or -1 if the key isn't mapped
+	 */
+	int get( long key ) {
+		int slot = slot( key );
+		while ( values[ slot ] != FREE ) {
+			if ( keys[ slot ] == key ) {
+				return values[ slot ];
+			}
+			slot = ( slot + 1 ) & mask;
+		}
+		return -1;
+	}
+	
+	int size() {
+		return size;
+	}
+	
+	private int expectedCapacity() {
+		return ( mask + 1 ) / 2;
+	}
+	
+	private int slot( long key ) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) ( hash ^ ( hash >>> 32 ) ) & mask;
+	}
+}
@@ -0,0 +1,20 @@
+package com.buzzingandroid.content;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class whose instances are read from query results. At compile time, the row mapper
+ * processor generates a {@link RowMapper} for the class named <tt>[class]RowMapper</tt>, in the same
+ * package, which reads the fields annotated with {@link Column}.<br />
+ * <br />
+ * The class must be a top-level or static nested class with a constructor without arguments,
+ * and neither may be private. Nested classes give mappers named <tt>[outer]_[class]RowMapper</tt>.
+ * @author Jesper Borgstrup
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface MappedRow {
+}
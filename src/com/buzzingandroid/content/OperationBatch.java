@@ -0,0 +1,220 @@
+package com.buzzingandroid.content;
+
+import java.util.ArrayList;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+
+/**
+ * Collects update and delete operations from any number of {@link QueryBuilder}s and applies
+ * them through <tt>applyBatch</tt> in chunks of a bounded size.<br />
+ * <br />
+ * A single huge <tt>applyBatch</tt> call can exceed the binder transaction limit and keeps
+ * the database locked until every operation is done. Instead, this class applies a chunk every time
+ * enough operations have been added, and allows the provider to yield its transaction to other
+ * threads at regular intervals within each chunk (see {@link ContentProviderOperation.Builder#withYieldAllowed(boolean)}).<br />
+ * <br />
+ * Each chunk is applied in its own <tt>applyBatch</tt> call, so the batch as a whole isn't atomic.
+ * Remember to call {@link #flush()} after adding the last operation.
+ * <pre>
+ * OperationBatch batch = new OperationBatch( context.getContentResolver(), AUTHORITY );
+ * for ( ... ) {
+ *     batch.update( new QueryBuilder().whereId( id ), values, uri );
+ * }
+ * batch.flush();
+ * </pre>
+ * @author Jesper Borgstrup
+ */
+public class OperationBatch {
+	
+	public static final int DEFAULT_CHUNK_SIZE = 250;
+	public static final int DEFAULT_YIELD_INTERVAL = 50;
+	
+	public interface ChunkListener {
+		/**
+		 * Called on the thread that added the operations, when a chunk has been applied
+		 * @param chunk The index of the chunk, starting at 0
+		 * @param results The results of the operations in the chunk, in the order they were added
+		 */
+		public void chunkApplied( int chunk, ContentProviderResult[] results );
+	}
+	
+	private final ContentResolver resolver;
+	private final String authority;
+	private final ContentProviderClient provider;
+	
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int yieldInterval = DEFAULT_YIELD_INTERVAL;
+	private ChunkListener listener;
+	
+	private ArrayList<ContentProviderOperation> pending = new ArrayList<ContentProviderOperation>();
+	private int appliedChunks = 0;
+	private int appliedOperations = 0;
+	
+	/**
+	 * Create a batch that is applied through the ContentResolver
+	 * @param resolver
+	 * @param authority The authority of the provider that all operations are sent to
+	 */
+	public OperationBatch( ContentResolver resolver, String authority ) {
+		this.resolver = resolver;
+		this.authority = authority;
+		this.provider = null;
+	}
+	
+	/**
+	 * Create a batch that is applied through the ContentProviderClient
+	 * @param provider
+	 */
+	public OperationBatch( ContentProviderClient provider ) {
+		this.resolver = null;
+		this.authority = null;
+		this.provider = provider;
+	}
+	
+	/**
+	 * Sets the maximum number of operations applied in a single <tt>applyBatch</tt> call.
+	 * The default is {@link #DEFAULT_CHUNK_SIZE}.
+	 * @param chunkSize
+	 * @return The OperationBatch instance for chaining method calls
+	 */
+	public OperationBatch setChunkSize( int chunkSize ) {
+		if ( chunkSize < 1 ) {
+			throw new IllegalArgumentException( "Chunk size must be positive" );
+		}
+		this.chunkSize = chunkSize;
+		return this;
+	}
+	
+	/**
+	 * Sets how many operations the provider applies between each yield point within a chunk.
+	 * The default is {@link #DEFAULT_YIELD_INTERVAL}. Use 0 to never yield.
+	 * @param yieldInterval
+	 * @return The OperationBatch instance for chaining method calls
+	 */
+	public OperationBatch setYieldInterval( int yieldInterval ) {
+		this.yieldInterval = yieldInterval;
+		return this;
+	}
+	
+	/**
+	 * Sets a listener to be notified of the results of each applied chunk
+	 * @param listener
+	 * @return The OperationBatch instance for chaining method calls
+	 */
+	public OperationBatch setChunkListener( ChunkListener listener ) {
+		this.listener = listener;
+		return this;
+	}
+	
+	/**
+	 * Adds an update of any row that matches the selection of the QueryBuilder, with the specified values.<br />
+	 * <br />
+	 * Applies a chunk if enough operations have been added.
+	 * @param builder
+	 * @param values
+	 * @param uri
+	 * @return The OperationBatch instance for chaining method calls
+	 * @throws RemoteException
+	 * @throws OperationApplicationException
+	 */
+	public OperationBatch update( QueryBuilder builder, ContentValues values, Uri uri ) throws RemoteException, OperationApplicationException {
+		for ( ContentProviderOperation.Builder operation: builder.createUpdateOperationBuilders( values, uri ) ) {
+			add( operation );
+		}
+		return this;
+	}
+	
+	/**
+	 * Adds a delete of any row that matches the selection of the QueryBuilder.<br />
+	 * <br />
+	 * Applies a chunk if enough operations have been added.
+	 * @param builder
+	 * @param uri
+	 * @return The OperationBatch instance for chaining method calls
+	 * @throws RemoteException
+	 * @throws OperationApplicationException
+	 */
+	public OperationBatch delete( QueryBuilder builder, Uri uri ) throws RemoteException, OperationApplicationException {
+		for ( ContentProviderOperation.Builder operation: builder.createDeleteOperationBuilders( uri ) ) {
+			add( operation );
+		}
+		return this;
+	}
+	
+	/**
+	 * Adds any operation. Its yield point is set by this batch, and must not use back references,
+	 * as it may end up in another chunk than the operation it references.<br />
+	 * <br />
+	 * Applies a chunk if enough operations have been added.
+	 * @param operation
+	 * @return The OperationBatch instance for chaining method calls
+	 * @throws RemoteException
+	 * @throws OperationApplicationException
+	 */
+	public OperationBatch add( ContentProviderOperation.Builder operation ) throws RemoteException, OperationApplicationException {
+		final int position = pending.size();
+		operation.withYieldAllowed( yieldInterval > 0 && position > 0 && position % yieldInterval == 0 );
+		pending.add( operation.build() );
+		if ( pending.size() >= chunkSize ) {
+			flush();
+		}
+		return this;
+	}
+	
+	/**
+	 * Applies the operations added since the last chunk was applied
+	 * @return The number of operations applied
+	 * @throws RemoteException
+	 * @throws OperationApplicationException
+	 */
+	public int flush() throws RemoteException, OperationApplicationException {
+		if ( pending.isEmpty() ) {
+			return 0;
+		}
+		
+		/*
+		 * Start a new list before applying, so a failed chunk isn't applied again
+		 */
+		ArrayList<ContentProviderOperation> chunk = pending;
+		pending = new ArrayList<ContentProviderOperation>( Math.min( chunkSize, DEFAULT_CHUNK_SIZE ) );
+		
+		ContentProviderResult[] results = provider != null
+				? provider.applyBatch( chunk )
+				: resolver.applyBatch( authority, chunk );
+		
+		final int chunkIndex = appliedChunks++;
+		appliedOperations += chunk.size();
+		if ( listener != null ) {
+			listener.chunkApplied( chunkIndex, results );
+		}
+		return chunk.size();
+	}
+	
+	/**
+	 * @return The number of operations added but not yet applied
+	 */
+	public int getPendingOperationCount() {
+		return pending.size();
+	}
+	
+	/**
+	 * @return The number of chunks applied so far
+	 */
+	public int getAppliedChunkCount() {
+		return appliedChunks;
+	}
+	
+	/**
+	 * @return The number of operations applied so far
+	 */
+	public int getAppliedOperationCount() {
+		return appliedOperations;
+	}
+}
@@ -0,0 +1,78 @@
+package com.buzzingandroid.content;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Iterates over the result of a {@link QueryBuilder} one page at a time, using
+ * {@link QueryBuilder#queryPage(Context, Uri, String, boolean, PageToken, int)}.<br />
+ * <br />
+ * Each call to {@link #next()} queries the next page. The caller is responsible for
+ * closing the returned cursors.
+ * @author Jesper Borgstrup
+ */
+public class PageIterator implements Iterator<Cursor> {
+	
+	private final QueryBuilder builder;
+	private final Context context;
+	private final Uri uri;
+	private final String sortColumn;
+	private final boolean descending;
+	private final int pageSize;
+	
+	private PageToken token;
+	private boolean finished;
+	
+	/**
+	 * @param builder The builder defining the projection and selection
+	 * @param context
+	 * @param uri
+	 * @param sortColumn The column to sort and seek by. Ties are broken by the ID column.
+	 * @param descending Whether to sort in descending order
+	 * @param pageSize The maximum number of rows in each page
+	 */
+	public PageIterator( QueryBuilder builder, Context context, Uri uri, String sortColumn, boolean descending, int pageSize ) {
+		this.builder = builder;
+		this.context = context;
+		this.uri = uri;
+		this.sortColumn = sortColumn;
+		this.descending = descending;
+		this.pageSize = pageSize;
+	}
+	
+	public boolean hasNext() {
+		return !finished;
+	}
+	
+	/**
+	 * Queries the next page. The last page may be empty.
+	 */
+	public Cursor next() {
+		if ( finished ) {
+			throw new NoSuchElementException();
+		}
+		Cursor page = builder.queryPage( context, uri, sortColumn, descending, token, pageSize );
+		if ( page == null || page.getCount() < pageSize ) {
+			finished = true;
+		} else {
+			token = PageToken.afterLastRow( page, sortColumn );
+		}
+		return page;
+	}
+	
+	/**
+	 * @return The token pointing after the last page returned by {@link #next()}, e.g. for saving
+	 * the position and continuing later, or null if no page has been returned
+	 */
+	public PageToken getToken() {
+		return token;
+	}
+	
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,99 @@
+package com.buzzingandroid.content;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.os.Build;
+import android.provider.BaseColumns;
+
+/**
+ * The position after the last row of a page, used by
+ * {@link QueryBuilder#queryPage(android.content.Context, android.net.Uri, String, boolean, PageToken, int)}
+ * to seek directly to the start of the next page.<br />
+ * <br />
+ * The token holds the sort key and {@link BaseColumns#_ID} of the last row, so fetching a page
+ * costs the same no matter how deep into the result it is, unlike <tt>LIMIT/OFFSET</tt> paging.<br />
+ * <br />
+ * The sort column must hold INTEGER, REAL or TEXT values, or NULL. Before Android 3.0, the type of a value
+ * can't be read from a cursor, so only INTEGER and TEXT sort columns are supported there.
+ * @author Jesper Borgstrup
+ */
+public final class PageToken {
+	
+	private final String sortValue;
+	private final long id;
+	
+	/**
+	 * @param sortValue The sort column value of the last row of the previous page, or null if it is NULL
+	 * @param id The ID of the last row of the previous page
+	 */
+	public PageToken( String sortValue, long id ) {
+		this.sortValue = sortValue;
+		this.id = id;
+	}
+	
+	/**
+	 * Creates a token pointing after the last row of the cursor.<br />
+	 * <br />
+	 * The cursor position is left unchanged.
+	 * @param cursor A page returned from <tt>queryPage</tt>
+	 * @param sortColumn The sort column the page was queried with
+	 * @return The token, or null if the cursor is empty
+	 * @throws IllegalArgumentException If the sort value of the last row is a BLOB
+	 */
+	public static PageToken afterLastRow( Cursor cursor, String sortColumn ) {
+		if ( cursor.getCount() == 0 ) {
+			return null;
+		}
+		int position = cursor.getPosition();
+		try {
+			cursor.moveToLast();
+			long id = cursor.getLong( cursor.getColumnIndexOrThrow( BaseColumns._ID ) );
+			String sortValue = getSortValue( cursor, cursor.getColumnIndexOrThrow( sortColumn ) );
+			return new PageToken( sortValue, id );
+		} finally {
+			cursor.moveToPosition( position );
+		}
+	}
+	
+	/**
+	 * @param cursor
+	 * @param column
+	 * @return The value of the column, written so that it compares equal to the stored value when bound
+	 */
+	private static String getSortValue( Cursor cursor, int column ) {
+		if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB ) {
+			return getTypedSortValue( cursor, column );
+		}
+		return cursor.getString( column );
+	}
+	
+	/**
+	 * A REAL value is written with every digit, since <tt>getString()</tt> rounds it to about 6 significant digits
+	 */
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static String getTypedSortValue( Cursor cursor, int column ) {
+		switch ( cursor.getType( column ) ) {
+		case Cursor.FIELD_TYPE_INTEGER:
+			return Long.toString( cursor.getLong( column ) );
+		case Cursor.FIELD_TYPE_FLOAT:
+			return Double.toString( cursor.getDouble( column ) );
+		case Cursor.FIELD_TYPE_NULL:
+			return null;
+		case Cursor.FIELD_TYPE_BLOB:
+			throw new IllegalArgumentException( "Can't page by a BLOB sort column" );
+		default:
+			return cursor.getString( column );
+		}
+	}
+	
+	/**
+	 * @return The sort column value, or null if it is NULL
+	 */
+	public String getSortValue() {
+		return sortValue;
+	}
+	
+	public long getId() {
+		return id;
+	}
+}
@@ -0,0 +1,1071 @@
+package com.buzzingandroid.content;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An immutable node in the selection of a {@link QueryBuilder}, which is built as a tree of predicates
+ * and normalized before any SQL is written.<br />
+ * <br />
+ * {@link #normalize(Set)} flattens nested AND and OR groups, removes duplicate terms, merges bounds
+ * and IN sets on the same column, and sorts the terms, so equivalent selections give the same SQL.
+ * A selection that can never match normalizes to {@link #FALSE}.<br />
+ * <br />
+ * Equalities and IN sets are only merged when all values are integers written the canonical way,
+ * which are equal exactly when they are equal strings, whatever the affinity and collation of the column.<br />
+ * Bounds are different, since every argument is bound as a string: on a column without numeric affinity,
+ * <tt>'10'&lt;'9'</tt>. Bounds are therefore only merged, and checked against each other and against
+ * equalities, on columns declared numeric, and only when both values were given as numbers.
+ * @author Jesper Borgstrup
+ */
+abstract class Predicate implements Comparable<Predicate> {
+	
+	static final Predicate TRUE = new Constant( true );
+	static final Predicate FALSE = new Constant( false );
+	
+	private String key;
+	
+	/**
+	 * Writes the predicate as SQL
+	 * @param sql
+	 * @param args Receives an argument for every question mark written
+	 */
+	abstract void appendTo( StringBuilder sql, List<String> args );
+	
+	/**
+	 * @param numericColumns The columns declared to have numeric affinity, whose bounds may be merged
+	 * @return An equivalent predicate in normal form
+	 */
+	abstract Predicate normalize( Set<String> numericColumns );
+	
+	/**
+	 * @return An equivalent predicate in normal form, without merging any bounds
+	 */
+	final Predicate normalize() {
+		return normalize( Collections.<String>emptySet() );
+	}
+	
+	/**
+	 * @return Whether the predicate must be put in parentheses when combined with other predicates
+	 */
+	boolean isCompound() {
+		return false;
+	}
+	
+	/**
+	 * @return Whether the SQL of the predicate means the same whatever values are bound to it
+	 */
+	boolean isRebindable() {
+		return true;
+	}
+	
+	/**
+	 * @param predicates
+	 * @return Whether every predicate is rebindable
+	 */
+	private static boolean areRebindable( List<Predicate> predicates ) {
+		for ( Predicate predicate: predicates ) {
+			if ( !predicate.isRebindable() ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the predicate as SQL, in parentheses if it is compound
+	 * @param sql
+	 * @param args
+	 */
+	final void appendNestedTo( StringBuilder sql, List<String> args ) {
+		if ( isCompound() ) {
+			sql.append( '(' );
+			appendTo( sql, args );
+			sql.append( ')' );
+		} else {
+			appendTo( sql, args );
+		}
+	}
+	
+	/**
+	 * @return The SQL and arguments of the predicate, which identify it
+	 */
+	private String key() {
+		if ( key == null ) {
+			StringBuilder sql = new StringBuilder();
+			ArrayList<String> args = new ArrayList<String>();
+			appendTo( sql, args );
+			for ( String arg: args ) {
+				sql.append( '\u0000' ).append( arg );
+			}
+			key = sql.toString();
+		}
+		return key;
+	}
+	
+	public int compareTo( Predicate another ) {
+		return key().compareTo( another.key() );
+	}
+	
+	@Override
+	public boolean equals( Object o ) {
+		return o instanceof Predicate && key().equals( ( (Predicate) o ).key() );
+	}
+	
+	@Override
+	public int hashCode() {
+		return key().hashCode();
+	}
+	
+	@Override
+	public String toString() {
+		return key().replace( '\u0000', ' ' );
+	}
+	
+	/**
+	 * @param value
+	 * @return Whether the value is an integer written the way <tt>Long.toString</tt> writes it. Two such values
+	 * are equal in SQLite exactly when they are equal strings, whatever the affinity and collation.
+	 */
+	static boolean isCanonicalInteger( String value ) {
+		if ( value == null || value.length() == 0 || value.length() > 20 ) {
+			return false;
+		}
+		try {
+			return Long.toString( Long.parseLong( value ) ).equals( value );
+		} catch ( NumberFormatException e ) {
+			return false;
+		}
+	}
+	
+	/**
+	 * A predicate that is always or never true
+	 */
+	private static final class Constant extends Predicate {
+		private final boolean value;
+		
+		Constant( boolean value ) {
+			this.value = value;
+		}
+		
+		@Override
+		void appendTo( StringBuilder sql, List<String> args ) {
+			sql.append( value ? '1' : '0' );
+		}
+		
+		@Override
+		Predicate normalize( Set<String> numericColumns ) {
+			return this;
+		}
+	}
+	
+	/**
+	 * The comparison operators, and their negations
+	 */
+	enum Operator {
+		EQUAL( "=" ),
+		NOT_EQUAL( "!=" ),
+		GREATER( ">" ),
+		GREATER_OR_EQUAL( ">=" ),
+		LESS( "<" ),
+		LESS_OR_EQUAL( "<=" );
+		
+		final String sql;
+		
+		private Operator( String sql ) {
+			this.sql = sql;
+		}
+		
+		Operator negate() {
+			switch ( this ) {
+			case EQUAL:
+				return NOT_EQUAL;
+			case NOT_EQUAL:
+				return EQUAL;
+			case GREATER:
+				return LESS_OR_EQUAL;
+			case GREATER_OR_EQUAL:
+				return LESS;
+			case LESS:
+				return GREATER_OR_EQUAL;
+			default:
+				return GREATER;
+			}
+		}
+		
+		boolean isLowerBound() {
+			return this == GREATER || this == GREATER_OR_EQUAL;
+		}
+		
+		boolean isUpperBound() {
+			return this == LESS || this == LESS_OR_EQUAL;
+		}
+		
+		boolean isStrict() {
+			return this == GREATER || this == LESS;
+		}
+	}
+	
+	/**
+	 * <tt>[column] [operator] ?</tt>. A null value is written as <tt>NULL</tt> instead of being bound.
+	 */
+	static final class Comparison extends Predicate {
+		final String column;
+		final Operator operator;
+		/**
+		 * The value as given, to know whether it is a number
+		 */
+		final Object value;
+		final String arg;
+		
+		Comparison( String column, Operator operator, Object value ) {
+			this.column = column;
+			this.operator = operator;
+			this.value = value;
+			this.arg = value == null ? null : value.toString();
+		}
+		
+		@Override
+		void appendTo( StringBuilder sql, List<String> args ) {
+			sql.append( column ).append( operator.sql );
+			if ( arg == null ) {
+				sql.append( "NULL" );
+			} else {
+				sql.append( '?' );
+				args.add( arg );
+			}
+		}
+		
+		@Override
+		Predicate normalize( Set<String> numericColumns ) {
+			return this;
+		}
+		
+		/**
+		 * @return Whether the value was given as a number, so it can be ordered against other numbers
+		 */
+		boolean isNumeric() {
+			if ( value instanceof Double || value instanceof Float ) {
+				return !Double.isNaN( ( (Number) value ).doubleValue() );
+			}
+			return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+		}
+		
+		/**
+		 * Compares the values of two numeric comparisons
+		 */
+		int compareValue( Comparison other ) {
+			Number a = (Number) value;
+			Number b = (Number) other.value;
+			if ( a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float ) {
+				return Double.compare( a.doubleValue(), b.doubleValue() );
+			}
+			long x = a.longValue();
+			long y = b.longValue();
+			return x < y ? -1 : ( x == y ? 0 : 1 );
+		}
+	}
+	
+	/**
+	 * <tt>[column] IS NULL</tt> or <tt>[column] IS NOT NULL</tt>
+	 */
+	static final class NullCheck extends Predicate {
+		final String column;
+		final boolean isNull;
+		
+		NullCheck( String column, boolean isNull ) {
+			this.column = column;
+			this.isNull = isNull;
+		}
+		
+		@Override
+		void appendTo( StringBuilder sql, List<String> args ) {
+			sql.append( column ).append( isNull ? " IS NULL" : " IS NOT NULL" );
+		}
+		
+		@Override
+		Predicate normalize( Set<String> numericColumns ) {
+			return this;
+		}
+	}
+	
+	/**
+	 * A set of values on a column that can be split into several smaller sets, for a set
+	 * with more bound values than a single statement allows
+	 */
+	abstract static class SplittableSet extends Predicate {
+		/**
+		 * @return The column the set is on
+		 */
+		abstract String getColumn();
+		
+		/**
+		 * @return The number of arguments the set binds
+		 */
+		abstract int getVariableCount();
+		
+		/**
+		 * @param maxVariables
+		 * @return Normalized sets that each bind at most maxVariables arguments, and together contain
+		 * the same values as this set. Only sets that aren't negated can be split.
+		 */
+		abstract List<Predicate> split( int maxVariables );
+	}
+	
+	/**
+	 * <tt>[column] IN (...)</tt> or <tt>[column] NOT IN (...)</tt>, with the values either
+	 * bound as arguments or written directly into the SQL
+	 */
+	static final class InSet extends SplittableSet {
+		final String column;
+		final String[] values;
+		final boolean negated;
+		final boolean bound;
+		
+		InSet( String column, String[] values, boolean negated, boolean bound ) {
+			this.column = column;
+			this.values = values;
+			this.negated = negated;
+			this.bound = bound;
+		}
+		
+		@Override
+		void appendTo( StringBuilder sql, List<String> args ) {
+			sql.append( column ).append( negated ? " NOT IN (" : " IN (" );
+			for ( int i = 0; i < values.length; i++ ) {
+				if ( i > 0 ) {
+					sql.append( ',' );
+				}
+				if ( bound ) {
+					sql.append( '?' );
+					args.add( values[i] );
+				} else {
+					sql.append( values[i] );
+				}
+			}
+			sql.append( ')' );
+		}
+		
+		@Override
+		Predicate normalize( Set<String> numericColumns ) {
+			if ( values.length == 0 ) {
+				return negated ? TRUE : FALSE;
+			}
+			String[] sorted = sortedDistinct( values );
+			if ( sorted.length == 1 && bound && sorted[0] != null ) {
+				return new Comparison( column, negated ? Operator.NOT_EQUAL : Operator.EQUAL, sorted[0] );
+			}
+			if ( Arrays.equals( sorted, values ) ) {
+				return this;
+			}
+			return new InSet( column, sorted, negated, bound );
+		}
+		
+		@Override
+		String getColumn() {
+			return column;
+		}
+		
+		@Override
+		int getVariableCount() {
+			return bound ? values.length : 0;
+		}
+		
+		/**
+		 * Removes duplicates from the whole set before splitting it, so the chunks are disjoint,
+		 * and no row matches more than one of them
+		 */
+		@Override
+		List<Predicate> split( int maxVariables ) {
+			String[] sorted = sortedDistinct( values );
+			ArrayList<Predicate> chunks = new ArrayList<Predicate>( ( sorted.length + maxVariables - 1 ) / maxVariables );
+			for ( int start = 0; start < sorted.length; start += maxVariables ) {
+				String[] chunk = new String[ Math.min( maxVariables, sorted.length - start ) ];
+				System.arraycopy( sorted, start, chunk, 0, chunk.length );
+				chunks.add( new InSet( column, chunk, negated, bound ).normalize() );
+			}
+			return chunks;
+		}
+		
+		/**
+		 * @return Whether every value is a canonical integer
+		 */
+		boolean isCanonical() {
+			for ( String value: values ) {
+				if ( !isCanonicalInteger( value ) ) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		boolean contains( String value ) {
+			for ( String v: values ) {
+				if ( v.equals( value ) ) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * Sorts the values without duplicates, numerically if they are all canonical integers
+		 */
+		private String[] sortedDistinct( String[] values ) {
+			LinkedHashSet<String> distinct = new LinkedHashSet<String>( Arrays.asList( values ) );
+			String[] sorted = distinct.toArray( new String[ distinct.size() ] );
+			if ( isCanonical() ) {
+				Arrays.sort( sorted, NUMERIC_ORDER );
+			} else if ( !distinct.contains( null ) ) {
+				Arrays.sort( sorted );
+			}
+			return sorted;
+		}
+	}
+	
+	/**
+	 * <tt>[column] IN (...)</tt> or <tt>[column] NOT IN (...)</tt> over integers, where every run of
+	 * at least {@link #MIN_RUN_LENGTH} consecutive integers is written as <tt>[column] BETWEEN ? AND ?</tt>,
+	 * and only the remaining values are listed.<br />
+	 * The column must hold integers, since a real number within a run also matches the run.
+	 */
+	static final class InRanges extends SplittableSet {
+		/**
+		 * The shortest run written as a range. A range binds two arguments, so shorter runs are listed.
+		 */
+		static final int MIN_RUN_LENGTH = 3;
+		
+		final String column;
+		/*
+		 * The sorted, disjoint ranges. A single value is a range that starts and ends with it.
+		 */
+		final long[] starts;
+		final long[] ends;
+		final boolean negated;
+		final boolean bound;
+		
+		private final int rangeCount;
+		
+		InRanges( String column, long[] starts, long[] ends, boolean negated, boolean bound ) {
+			this.column = column;
+			this.starts = starts;
+			this.ends = ends;
+			this.negated = negated;
+			this.bound = bound;
+			
+			int ranges = 0;
+			for ( int i = 0; i < starts.length; i++ ) {
+				if ( starts[i] != ends[i] ) {
+					ranges++;
+				}
+			}
+			this.rangeCount = ranges;
+		}
+		
+		/**
+		 * Sorts the values, removes duplicates and finds the runs of consecutive values
+		 * @param column
+		 * @param values Any integers. The array is not modified.
+		 * @param negated
+		 * @param bound
+		 * @return
+		 */
+		static InRanges compact( String column, long[] values, boolean negated, boolean bound ) {
+			long[] sorted = values.clone();
+			Arrays.sort( sorted );
+			
+			long[] starts = new long[ sorted.length ];
+			long[] ends = new long[ sorted.length ];
+			int count = 0;
+			for ( int i = 0; i < sorted.length; ) {
+				// Find the end of the run, skipping duplicates
+				int j = i;
+				while ( j + 1 < sorted.length && ( sorted[ j + 1 ] == sorted[j] || sorted[ j + 1 ] == sorted[j] + 1 ) ) {
+					j++;
+				}
+				long start = sorted[i];
+				long end = sorted[j];
+				if ( end - start + 1 >= MIN_RUN_LENGTH ) {
+					starts[ count ] = start;
+					ends[ count ] = end;
+					count++;
+				} else {
+					// Not value <= end, which is always true for Long.MAX_VALUE
+					for ( long value = start; ; value++ ) {
+						starts[ count ] = value;
+						ends[ count ] = value;
+						count++;
+						if ( value == end ) {
+							break;
+						}
+					}
+				}
+				i = j + 1;
+			}
+			return new InRanges( column, copyOf( starts, count ), copyOf( ends, count ), negated, bound );
+		}
+		
+		private static long[] copyOf( long[] array, int length ) {
+			long[] copy = new long[ length ];
+			System.arraycopy( array, 0, copy, 0, length );
+			return copy;
+		}
+		
+		@Override
+		void appendTo( StringBuilder sql, List<String> args ) {
+			final String separator = negated ? " AND " : " OR ";
+			boolean first = true;
+			for ( int i = 0; i < starts.length; i++ ) {
+				if ( starts[i] != ends[i] ) {
+					if ( !first ) {
+						sql.append( separator );
+					}
+					first = false;
+					sql.append( column ).append( negated ? " NOT BETWEEN " : " BETWEEN " );
+					appendValue( sql, args, starts[i] );
+					sql.append( " AND " );
+					appendValue( sql, args, ends[i] );
+				}
+			}
+			
+			final int singleCount = starts.length - rangeCount;
+			if ( singleCount == 0 ) {
+				return;
+			}
+			if ( !first ) {
+				sql.append( separator );
+			}
+			if ( singleCount == 1 ) {
+				sql.append( column ).append( negated ? "!=" : "=" );
+			} else {
+				sql.append( column ).append( negated ? " NOT IN (" : " IN (" );
+			}
+			first = true;
+			for ( int i = 0; i < starts.length; i++ ) {
+				if ( starts[i] == ends[i] ) {
+					if ( !first ) {
+						sql.append( ',' );
+					}
+					first = false;
+					appendValue( sql, args, starts[i] );
+				}
+			}
+			if ( singleCount > 1 ) {
+				sql.append( ')' );
+			}
+		}
+		
+		private void appendValue( StringBuilder sql, List<String> args, long value ) {
+			if ( bound ) {
+				sql.append( '?' );
+				args.add( Long.toString( value ) );
+			} else {
+				sql.append( value );
+			}
+		}
+		
+		@Override
+		boolean isCompound() {
+			return rangeCount > 1 || rangeCount == 1 && starts.length > 1;
+		}
+		
+		/**
+		 * A bound range is only written for the runs in the values it was compacted from
+		 */
+		@Override
+		boolean isRebindable() {
+			return rangeCount == 0 || !bound;
+		}
+		
+		/**
+		 * A set without runs is an ordinary IN set, which can be merged with other terms
+		 */
+		@Override
+		Predicate normalize( Set<String> numericColumns ) {
+			if ( rangeCount > 0 ) {
+				return this;
+			}
+			String[] values = new String[ starts.length ];
+			for ( int i = 0; i < values.length; i++ ) {
+				values[i] = Long.toString( starts[i] );
+			}
+			return new InSet( column, values, negated, bound ).normalize();
+		}
+		
+		@Override
+		String getColumn() {
+			return column;
+		}
+		
+		@Override
+		int getVariableCount() {
+			return bound ? starts.length + rangeCount : 0;
+		}
+		
+		/**
+		 * Packs the ranges and values in order into as few sets as possible
+		 */
+		@Override
+		List<Predicate> split( int maxVariables ) {
+			if ( maxVariables < 2 ) {
+				throw new IllegalArgumentException( "A range binds two arguments" );
+			}
+			ArrayList<Predicate> chunks = new ArrayList<Predicate>();
+			int start = 0;
+			int variables = 0;
+			for ( int i = 0; i < starts.length; i++ ) {
+				int cost = starts[i] == ends[i] ? 1 : 2;
+				if ( variables + cost > maxVariables ) {
+					chunks.add( slice( start, i ) );
+					start = i;
+					variables = 0;
+				}
+				variables += cost;
+			}
+			chunks.add( slice( start, starts.length ) );
+			return chunks;
+		}
+		
+		private Predicate slice( int from, int to ) {
+			long[] sliceStarts = new long[ to - from ];
+			long[] sliceEnds = new long[ to - from ];
+			System.arraycopy( starts, from, sliceStarts, 0, sliceStarts.length );
+			System.arraycopy( ends, from, sliceEnds, 0, sliceEnds.length );
+			return new InRanges( column, sliceStarts, sliceEnds, negated, bound ).normalize();
+		}
+	}
+	
+	private static final Comparator<String> NUMERIC_ORDER = new Comparator<String>() {
+		public int compare( String a, String b ) {
+			long x = Long.parseLong( a );
+			long y = Long.parseLong( b );
+			return x < y ? -1 : ( x == y ? 0 : 1 );
+		}
+	};
+	
+	/**
+	 * A selection given as SQL, which is kept as it is
+	 */
+	static final class Raw extends Predicate {
+		final String sql;
+		final String[] args;
+		
+		Raw( String sql, String[] args ) {
+			this.sql = sql;
+			this.args = args;
+		}
+		
+		@Override
+		void appendTo( StringBuilder sql, List<String> args ) {
+			sql.append( this.sql );
+			args.addAll( Arrays.asList( this.args ) );
+		}
+		
+		@Override
+		Predicate normalize( Set<String> numericColumns ) {
+			return this;
+		}
+		
+		@Override
+		boolean isCompound() {
+			return true;
+		}
+	}
+	
+	/**
+	 * <tt>NOT [predicate]</tt>
+	 */
+	static final class Not extends Predicate {
+		final Predicate predicate;
+		
+		Not( Predicate predicate ) {
+			this.predicate = predicate;
+		}
+		
+		@Override
+		void appendTo( StringBuilder sql, List<String> args ) {
+			sql.append( "NOT " );
+			predicate.appendNestedTo( sql, args );
+		}
+		
+		@Override
+		boolean isRebindable() {
+			return predicate.isRebindable();
+		}
+		
+		/**
+		 * Moves the negation into the predicate where possible. Negating a comparison
+		 * gives the same result as negating its operator, also when the column is null.
+		 */
+		@Override
+		Predicate normalize( Set<String> numericColumns ) {
+			Predicate normalized = predicate.normalize( numericColumns );
+			if ( normalized == TRUE ) {
+				return FALSE;
+			} else if ( normalized == FALSE ) {
+				return TRUE;
+			} else if ( normalized instanceof Not ) {
+				return ( (Not) normalized ).predicate;
+			} else if ( normalized instanceof Comparison ) {
+				Comparison comparison = (Comparison) normalized;
+				return new Comparison( comparison.column, comparison.operator.negate(), comparison.value );
+			} else if ( normalized instanceof NullCheck ) {
+				NullCheck check = (NullCheck) normalized;
+				return new NullCheck( check.column, !check.isNull );
+			} else if ( normalized instanceof InSet ) {
+				InSet set = (InSet) normalized;
+				return new InSet( set.column, set.values, !set.negated, set.bound ).normalize();
+			} else if ( normalized instanceof InRanges ) {
+				InRanges ranges = (InRanges) normalized;
+				return new InRanges( ranges.column, ranges.starts, ranges.ends, !ranges.negated, ranges.bound );
+			}
+			return normalized == predicate ? this : new Not( normalized );
+		}
+	}
+	
+	/**
+	 * <tt>[predicate] AND [predicate] ...</tt>
+	 */
+	static final class And extends Predicate {
+		final List<Predicate> predicates;
+		
+		And( List<Predicate> predicates ) {
+			this.predicates = predicates;
+		}
+		
+		@Override
+		void appendTo( StringBuilder sql, List<String> args ) {
+			for ( int i = 0; i < predicates.size(); i++ ) {
+				if ( i > 0 ) {
+					sql.append( " AND " );
+				}
+				predicates.get( i ).appendNestedTo( sql, args );
+			}
+		}
+		
+		@Override
+		boolean isCompound() {
+			return true;
+		}
+		
+		@Override
+		boolean isRebindable() {
+			return areRebindable( predicates );
+		}
+		
+		@Override
+		Predicate normalize( Set<String> numericColumns ) {
+			ArrayList<Predicate> flat = new ArrayList<Predicate>();
+			for ( Predicate predicate: predicates ) {
+				Predicate normalized = predicate.normalize( numericColumns );
+				if ( normalized == FALSE ) {
+					return FALSE;
+				} else if ( normalized instanceof And ) {
+					flat.addAll( ( (And) normalized ).predicates );
+				} else if ( normalized != TRUE ) {
+					flat.add( normalized );
+				}
+			}
+			
+			/*
+			 * Merge the terms on each column. Bounds can only be ordered on numeric columns.
+			 */
+			LinkedHashMap<String, ColumnTerms> columns = new LinkedHashMap<String, ColumnTerms>();
+			TreeSet<Predicate> terms = new TreeSet<Predicate>();
+			for ( Predicate predicate: flat ) {
+				String column = getColumn( predicate );
+				if ( column == null ) {
+					terms.add( predicate );
+					continue;
+				}
+				ColumnTerms columnTerms = columns.get( column );
+				if ( columnTerms == null ) {
+					columnTerms = new ColumnTerms( numericColumns.contains( column ) );
+					columns.put( column, columnTerms );
+				}
+				if ( !columnTerms.add( predicate ) ) {
+					return FALSE;
+				}
+			}
+			for ( ColumnTerms columnTerms: columns.values() ) {
+				if ( !columnTerms.merge( terms ) ) {
+					return FALSE;
+				}
+			}
+			return join( terms, TRUE );
+		}
+		
+		/**
+		 * @return The column of a predicate that can be merged with others, or null
+		 */
+		private static String getColumn( Predicate predicate ) {
+			if ( predicate instanceof Comparison && ( (Comparison) predicate ).arg != null ) {
+				return ( (Comparison) predicate ).column;
+			} else if ( predicate instanceof InSet && !( (InSet) predicate ).negated ) {
+				return ( (InSet) predicate ).column;
+			} else if ( predicate instanceof NullCheck ) {
+				return ( (NullCheck) predicate ).column;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * The terms on one column of an AND group, merged into as few terms as possible
+	 */
+	private static final class ColumnTerms {
+		/*
+		 * Whether the column has numeric affinity, so its bounds compare as numbers
+		 */
+		private final boolean numeric;
+		
+		private Comparison lower;
+		private Comparison upper;
+		private Comparison equal;
+		private InSet set;
+		private NullCheck nullCheck;
+		private final ArrayList<Predicate> unmerged = new ArrayList<Predicate>();
+		
+		ColumnTerms( boolean numeric ) {
+			this.numeric = numeric;
+		}
+		
+		/**
+		 * @param predicate
+		 * @return false if the predicate contradicts the terms added before it
+		 */
+		boolean add( Predicate predicate ) {
+			if ( predicate instanceof NullCheck ) {
+				NullCheck check = (NullCheck) predicate;
+				if ( nullCheck != null && nullCheck.isNull != check.isNull ) {
+					return false;
+				}
+				nullCheck = check;
+			} else if ( predicate instanceof InSet ) {
+				InSet other = (InSet) predicate;
+				if ( set == null ) {
+					set = other;
+				} else if ( set.isCanonical() && other.isCanonical() ) {
+					ArrayList<String> intersection = new ArrayList<String>();
+					for ( String value: set.values ) {
+						if ( other.contains( value ) ) {
+							intersection.add( value );
+						}
+					}
+					if ( intersection.isEmpty() ) {
+						return false;
+					}
+					set = new InSet( set.column, intersection.toArray( new String[ intersection.size() ] ), false, set.bound || other.bound );
+				} else {
+					unmerged.add( other );
+				}
+			} else {
+				Comparison comparison = (Comparison) predicate;
+				if ( comparison.operator == Operator.EQUAL ) {
+					if ( equal == null ) {
+						equal = comparison;
+					} else if ( !equal.arg.equals( comparison.arg ) ) {
+						if ( isCanonicalInteger( equal.arg ) && isCanonicalInteger( comparison.arg ) ) {
+							return false;
+						}
+						unmerged.add( comparison );
+					}
+				} else if ( comparison.operator.isLowerBound() && numeric && comparison.isNumeric() ) {
+					if ( lower == null || tighter( comparison, lower, 1 ) ) {
+						lower = comparison;
+					}
+				} else if ( comparison.operator.isUpperBound() && numeric && comparison.isNumeric() ) {
+					if ( upper == null || tighter( comparison, upper, -1 ) ) {
+						upper = comparison;
+					}
+				} else {
+					unmerged.add( comparison );
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * @param direction 1 for lower bounds, -1 for upper bounds
+		 * @return Whether the bound a is tighter than the bound b
+		 */
+		private static boolean tighter( Comparison a, Comparison b, int direction ) {
+			int order = a.compareValue( b ) * direction;
+			return order > 0 || order == 0 && a.operator.isStrict();
+		}
+		
+		/**
+		 * @param direction 1 for lower bounds, -1 for upper bounds
+		 * @return Whether the value of the equality is within the bound
+		 */
+		private static boolean satisfies( Comparison equal, Comparison bound, int direction ) {
+			int order = equal.compareValue( bound ) * direction;
+			return order > 0 || order == 0 && !bound.operator.isStrict();
+		}
+		
+		/**
+		 * Adds the merged terms
+		 * @param terms
+		 * @return false if the terms contradict each other
+		 */
+		boolean merge( TreeSet<Predicate> terms ) {
+			if ( nullCheck != null && nullCheck.isNull && ( equal != null || lower != null || upper != null || set != null ) ) {
+				// A comparison with null is never true
+				return false;
+			}
+			if ( equal != null && set != null && isCanonicalInteger( equal.arg ) && set.isCanonical() ) {
+				if ( !set.contains( equal.arg ) ) {
+					return false;
+				}
+				set = null;
+			}
+			if ( lower != null && upper != null ) {
+				int order = lower.compareValue( upper );
+				if ( order > 0 || order == 0 && ( lower.operator.isStrict() || upper.operator.isStrict() ) ) {
+					return false;
+				}
+				if ( order == 0 && equal == null ) {
+					equal = new Comparison( lower.column, Operator.EQUAL, lower.value );
+				}
+			}
+			if ( equal != null && numeric && equal.isNumeric() ) {
+				if ( lower != null && !satisfies( equal, lower, 1 ) ) {
+					return false;
+				}
+				if ( upper != null && !satisfies( equal, upper, -1 ) ) {
+					return false;
+				}
+				// The equality implies the bounds
+				lower = null;
+				upper = null;
+			}
+			
+			add( terms, equal );
+			add( terms, lower );
+			add( terms, upper );
+			add( terms, set );
+			add( terms, nullCheck );
+			terms.addAll( unmerged );
+			return true;
+		}
+		
+		private static void add( TreeSet<Predicate> terms, Predicate predicate ) {
+			if ( predicate != null ) {
+				terms.add( predicate.normalize() );
+			}
+		}
+	}
+	
+	/**
+	 * <tt>[predicate] OR [predicate] ...</tt>
+	 */
+	static final class Or extends Predicate {
+		final List<Predicate> predicates;
+		
+		Or( List<Predicate> predicates ) {
+			this.predicates = predicates;
+		}
+		
+		@Override
+		void appendTo( StringBuilder sql, List<String> args ) {
+			for ( int i = 0; i < predicates.size(); i++ ) {
+				if ( i > 0 ) {
+					sql.append( " OR " );
+				}
+				predicates.get( i ).appendNestedTo( sql, args );
+			}
+		}
+		
+		@Override
+		boolean isCompound() {
+			return true;
+		}
+		
+		@Override
+		boolean isRebindable() {
+			return areRebindable( predicates );
+		}
+		
+		@Override
+		Predicate normalize( Set<String> numericColumns ) {
+			ArrayList<Predicate> flat = new ArrayList<Predicate>();
+			for ( Predicate predicate: predicates ) {
+				Predicate normalized = predicate.normalize( numericColumns );
+				if ( normalized == TRUE ) {
+					return TRUE;
+				} else if ( normalized instanceof Or ) {
+					flat.addAll( ( (Or) normalized ).predicates );
+				} else if ( normalized != FALSE ) {
+					flat.add( normalized );
+				}
+			}
+			
+			/*
+			 * Unite the equalities and bound IN sets on each column into a single IN set
+			 */
+			LinkedHashMap<String, List<Predicate>> alternatives = new LinkedHashMap<String, List<Predicate>>();
+			TreeSet<Predicate> terms = new TreeSet<Predicate>();
+			for ( Predicate predicate: flat ) {
+				String column = null;
+				if ( predicate instanceof Comparison ) {
+					Comparison comparison = (Comparison) predicate;
+					if ( comparison.operator == Operator.EQUAL && comparison.arg != null ) {
+						column = comparison.column;
+					}
+				} else if ( predicate instanceof InSet && !( (InSet) predicate ).negated && ( (InSet) predicate ).bound ) {
+					column = ( (InSet) predicate ).column;
+				}
+				if ( column == null ) {
+					terms.add( predicate );
+					continue;
+				}
+				List<Predicate> columnAlternatives = alternatives.get( column );
+				if ( columnAlternatives == null ) {
+					columnAlternatives = new ArrayList<Predicate>();
+					alternatives.put( column, columnAlternatives );
+				}
+				columnAlternatives.add( predicate );
+			}
+			for ( Map.Entry<String, List<Predicate>> entry: alternatives.entrySet() ) {
+				List<Predicate> columnAlternatives = entry.getValue();
+				LinkedHashSet<String> values = new LinkedHashSet<String>();
+				for ( Predicate predicate: columnAlternatives ) {
+					if ( predicate instanceof Comparison ) {
+						values.add( ( (Comparison) predicate ).arg );
+					} else {
+						values.addAll( Arrays.asList( ( (InSet) predicate ).values ) );
+					}
+				}
+				if ( columnAlternatives.size() == 1 || values.size() > QueryBuilder.SQLITE_MAX_VARIABLE_NUMBER ) {
+					terms.addAll( columnAlternatives );
+				} else {
+					terms.add( new InSet( entry.getKey(), values.toArray( new String[ values.size() ] ), false, true ).normalize() );
+				}
+			}
+			return join( terms, FALSE );
+		}
+	}
+	
+	/**
+	 * @param terms Sorted, normalized terms
+	 * @param identity The value of an empty group
+	 * @return The terms joined into an AND group if the identity is {@link #TRUE}, or an OR group if it is {@link #FALSE}
+	 */
+	private static Predicate join( TreeSet<Predicate> terms, Predicate identity ) {
+		if ( terms.isEmpty() ) {
+			return identity;
+		} else if ( terms.size() == 1 ) {
+			return terms.first();
+		}
+		List<Predicate> list = Collections.unmodifiableList( new ArrayList<Predicate>( terms ) );
+		return identity == TRUE ? new And( list ) : new Or( list );
+	}
+}
@@ -1,15 +1,25 @@
 package com.buzzingandroid.content;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Pattern;
 
-import android.content.AsyncQueryHandler;
 import android.content.ContentProvider;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.provider.BaseColumns;
@@ -18,6 +28,9 @@ import android.text.TextUtils;
 import android.util.Pair;
 import android.widget.FilterQueryProvider;
 
+import com.buzzingandroid.content.AsyncQueryExecutor.Priority;
+import com.buzzingandroid.content.Predicate.Operator;
+
 /**
  * A class designed to simplify selections in query, update and delete
  * operations through a {@link ContentProvider} 
@@ -26,16 +39,208 @@ import android.widget.FilterQueryProvider;
  */
 public class QueryBuilder {
 	
+	/**
+	 * The maximum number of host parameters (question marks) in a single SQLite statement
+	 */
+	public static final int SQLITE_MAX_VARIABLE_NUMBER = 999;
+	
+	/**
+	 * How the values of the <tt>whereColumnInSet</tt> and <tt>whereColumnNotInSet</tt> methods
+	 * are put into the selection
+	 */
+	public enum InSetMode {
+		/**
+		 * The values are written directly into the selection string. Every distinct set
+		 * gives a distinct SQL statement.
+		 */
+		LITERAL,
+		/**
+		 * The values are bound as selection arguments, so sets of the same size give the same SQL statement.<br />
+		 * An IN set larger than {@link QueryBuilder#SQLITE_MAX_VARIABLE_NUMBER} is split into several
+		 * queries whose results are merged.
+		 */
+		BOUND
+	}
+	
+	/**
+	 * How the free-text search set up with {@link QueryBuilder#setSearchColumns(String...)}
+	 * and {@link QueryBuilder#setSearchQuery(String)} is put into the selection
+	 */
+	public enum SearchMode {
+		/**
+		 * Every token must occur anywhere in one of the search columns, using <tt>LIKE '%token%'</tt>.
+		 * This can't use an index, so every search scans the whole table.
+		 */
+		LIKE,
+		/**
+		 * Every token must be a prefix of one of the search columns, using
+		 * <tt>[column]&gt;=[token] AND [column]&lt;[upper bound]</tt>.<br />
+		 * An index on a search column can serve this. The comparison uses the collation of the column,
+		 * so declare the column <tt>COLLATE NOCASE</tt> (and index it) for case-insensitive search.
+		 */
+		PREFIX_RANGE,
+		/**
+		 * Every token must be a prefix of one of the search columns, using <tt>[column] GLOB '[token]*'</tt>.<br />
+		 * GLOB is case-sensitive. An index on a search column with the default BINARY collation can serve this.
+		 */
+		PREFIX_GLOB,
+		/**
+		 * Every token must be a prefix of a word in one of the search columns of the full-text table set with
+		 * {@link QueryBuilder#setFullTextTable(String)}, using <tt>[column] MATCH '"[token]*"'</tt>.
+		 * @see FullTextSearchTable
+		 */
+		FULL_TEXT
+	}
+	
+	/**
+	 * The operations reported to a {@link QueryListener}
+	 */
+	public enum Operation {
+		QUERY,
+		/**
+		 * A query run by <tt>queryAsync</tt>. It is reported instead of QUERY, on the background thread
+		 * when the query completes.
+		 */
+		QUERY_ASYNC,
+		UPDATE,
+		DELETE
+	}
+	
+	/**
+	 * Receives the timing and row count of every query, update and delete run by any QueryBuilder
+	 * @see QueryBuilder#addQueryListener(QueryListener)
+	 * @see QueryMetrics
+	 */
+	public interface QueryListener {
+		/**
+		 * Called on the thread that ran the operation, right after it completed. Operations that throw are not reported.<br />
+		 * <br />
+		 * The provider time of a QUERY or QUERY_ASYNC includes reading the row count, which runs the query of a cursor that
+		 * is only run when it is first read. For QUERY_ASYNC, the time the query waited in the queue is not included.
+		 * @param operation
+		 * @param uri
+		 * @param fingerprint The selection with every value replaced by a question mark, and every list of
+		 * values shortened, so calls that only differ in their values have the same fingerprint
+		 * @param buildNanos The time spent building the selection, in nanoseconds
+		 * @param providerNanos The time spent in the provider, in nanoseconds
+		 * @param rows The number of rows returned, updated or deleted, or -1 if a query returned null
+		 */
+		public void operationCompleted( Operation operation, Uri uri, String fingerprint, long buildNanos, long providerNanos, int rows );
+	}
+	
+	private static final CopyOnWriteArrayList<QueryListener> queryListeners = new CopyOnWriteArrayList<QueryListener>();
+	
+	/**
+	 * Adds a listener that is told about every query, update and delete run by any QueryBuilder.
+	 * No timing is done while there are no listeners.
+	 * @param listener
+	 */
+	public static void addQueryListener( QueryListener listener ) {
+		queryListeners.addIfAbsent( listener );
+	}
+	
+	/**
+	 * @param listener
+	 */
+	public static void removeQueryListener( QueryListener listener ) {
+		queryListeners.remove( listener );
+	}
+	
 	public QueryBuilder() {}
 	
-	private StringBuilder selection = new StringBuilder();
-	private ArrayList<String> selectionArgs = new ArrayList<String>();
+	/**
+	 * Creates a copy of another QueryBuilder, with the same selection, search, projection and sort order.<br />
+	 * <br />
+	 * The copy is independent of the original, so changing one doesn't change the other.
+	 * Use a copy to run a query on another thread while the original is still being changed.
+	 * @param other
+	 */
+	public QueryBuilder( QueryBuilder other ) {
+		// The predicates are immutable, so only the list is copied
+		this.where = new ArrayList<Predicate>( other.where );
+		
+		// The arrays are never modified, only replaced, so they can be shared
+		this.searchColumns = other.searchColumns;
+		this.searchQueryTokens = other.searchQueryTokens;
+		this.searchMode = other.searchMode;
+		this.fullTextTable = other.fullTextTable;
+		this.projection = other.projection;
+		this.deferredColumns = other.deferredColumns;
+		this.sortOrder = other.sortOrder;
+		
+		this.inSetMode = other.inSetMode;
+		this.chunkedSet = other.chunkedSet;
+		this.numericColumns = other.numericColumns;
+		
+		// So are the memoized parts
+		this.normalizedWhere = other.normalizedWhere;
+		this.searchSelection = other.searchSelection;
+		this.searchSelectionArgs = other.searchSelectionArgs;
+		this.builtSelection = other.builtSelection;
+		this.builtSelections = other.builtSelections;
+		this.selectionFingerprint = other.selectionFingerprint;
+		
+		// Copies refine each other's searches
+		this.searchRefinement = other.searchRefinement;
+		this.queryCache = other.queryCache;
+		this.queryDeduplicator = other.queryDeduplicator;
+		this.asyncQueryExecutor = other.asyncQueryExecutor;
+	}
+	
+	/*
+	 * The predicates of the selection, which must all be true
+	 */
+	private ArrayList<Predicate> where = new ArrayList<Predicate>();
 	
 	private String[] searchColumns = new String[0];
 	private String[] searchQueryTokens = new String[0];
+	private SearchMode searchMode = SearchMode.LIKE;
+	private String fullTextTable;
 	private String[] projection;
+	private String[] deferredColumns;
 	private String sortOrder;
 	
+	private InSetMode inSetMode = InSetMode.LITERAL;
+	/*
+	 * An IN set too large for a single statement. It is kept out of the selection
+	 * and split into chunks by buildSelections()
+	 */
+	private Predicate.SplittableSet chunkedSet;
+	/*
+	 * The columns declared numeric, whose bounds are merged. The set is never modified, only replaced.
+	 */
+	private Set<String> numericColumns = Collections.emptySet();
+	
+	private static final String[] NO_ARGS = new String[0];
+	/**
+	 * The selection of a QueryBuilder whose predicates can never be true
+	 */
+	private static final String ALWAYS_FALSE_SELECTION = "0";
+	private static final String[] COUNT_PROJECTION = new String[] { "COUNT(*) AS " + BaseColumns._COUNT };
+	private static final String[] ID_PROJECTION = new String[] { BaseColumns._ID };
+	
+	/**
+	 * The highest code point, U+10FFFF. A token followed by this sorts after any other
+	 * string starting with the token.
+	 */
+	private static final String MAX_CODE_POINT = new String( Character.toChars( Character.MAX_CODE_POINT ) );
+	
+	/*
+	 * Memoized parts of the compiled selection. A part is reset to null when the state
+	 * it was built from changes, and is rebuilt lazily by buildSelection()
+	 */
+	private Predicate normalizedWhere;
+	private String searchSelection;
+	private String[] searchSelectionArgs;
+	private Pair<String, String[]> builtSelection;
+	private List<Pair<String, String[]>> builtSelections;
+	private String selectionFingerprint;
+	
+	private SearchRefinement searchRefinement;
+	private QueryCache queryCache;
+	private QueryDeduplicator queryDeduplicator;
+	private AsyncQueryExecutor asyncQueryExecutor;
+	
 	/**
 	 * Requires the ID column ({@link BaseColumns#_ID}) to be the specified long.<br />
 	 * Similar to the SQL expression <tt>_id=[id]</tt>
@@ -43,10 +248,7 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereId( long id ) {
-		readySelection();
-		selection.append( BaseColumns._ID ).append( "=?" );
-		selectionArgs.add( Long.toString( id ) );
-		return this;
+		return where( new Predicate.Comparison( BaseColumns._ID, Operator.EQUAL, Long.valueOf( id ) ) );
 	}
 	
 	/**
@@ -56,10 +258,7 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereId( int id ) {
-		readySelection();
-		selection.append( BaseColumns._ID ).append( "=?" );
-		selectionArgs.add( Integer.toString( id ) );
-		return this;
+		return where( new Predicate.Comparison( BaseColumns._ID, Operator.EQUAL, Integer.valueOf( id ) ) );
 	}
 	
 	/**
@@ -69,9 +268,7 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnIsNull( String column ) {
-		readySelection();
-		selection.append( column ).append( " IS NULL" );
-		return this;
+		return where( new Predicate.NullCheck( column, true ) );
 	}
 	
 	/**
@@ -81,37 +278,35 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnIsNotNull( String column ) {
-		readySelection();
-		selection.append( column ).append( " IS NOT NULL" );
-		return this;
+		return where( new Predicate.NullCheck( column, false ) );
 	}
 	
 	/**
 	 * Requires the specified column to be the specified value.<br />
-	 * Similar to the SQL expression <tt>[column]=[value]</tt>
+	 * Similar to the SQL expression <tt>[column]=[value]</tt>, or <tt>[column] IS NULL</tt> if the value is null
 	 * @param column
 	 * @param value
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnEquals( String column, Object value ) {
-		readySelection();
-		selection.append(column).append(value == null ? " IS ?" : "=?");
-		selectionArgs.add( value == null ? null : value.toString() );
-		return this;
+		if ( value == null ) {
+			return whereColumnIsNull( column );
+		}
+		return where( new Predicate.Comparison( column, Operator.EQUAL, value ) );
 	}
 	
 	/**
 	 * Requires the specified column to not be the specified value.<br />
-	 * Similar to the SQL expression <tt>[column]!=[value]</tt>
+	 * Similar to the SQL expression <tt>[column]!=[value]</tt>, or <tt>[column] IS NOT NULL</tt> if the value is null
 	 * @param column
 	 * @param value
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnNotEquals( String column, Object value ) {
-		readySelection();
-		selection.append(column).append(value == null ? " IS NOT ?" : "!=?");
-		selectionArgs.add( value == null ? null : value.toString() );
-		return this;
+		if ( value == null ) {
+			return whereColumnIsNotNull( column );
+		}
+		return where( new Predicate.Comparison( column, Operator.NOT_EQUAL, value ) );
 	}
 	
 	/**
@@ -122,10 +317,7 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnGreaterThan( String column, Object value ) {
-		readySelection();
-		selection.append( column ).append( ">?" );
-		selectionArgs.add( value == null ? null : value.toString() );
-		return this;
+		return where( new Predicate.Comparison( column, Operator.GREATER, value ) );
 	}
 	
 	/**
@@ -136,10 +328,7 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnGreaterThanOrEqual( String column, Object value ) {
-		readySelection();
-		selection.append( column ).append( ">=?" );
-		selectionArgs.add( value == null ? null : value.toString() );
-		return this;
+		return where( new Predicate.Comparison( column, Operator.GREATER_OR_EQUAL, value ) );
 	}
 	
 	/**
@@ -150,10 +339,7 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnLessThan( String column, Object value ) {
-		readySelection();
-		selection.append( column ).append( "<?" );
-		selectionArgs.add( value == null ? null : value.toString() );
-		return this;
+		return where( new Predicate.Comparison( column, Operator.LESS, value ) );
 	}
 	
 	/**
@@ -164,10 +350,7 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnLessThanOrEqual( String column, Object value ) {
-		readySelection();
-		selection.append( column ).append( "<=?" );
-		selectionArgs.add( value == null ? null : value.toString() );
-		return this;
+		return where( new Predicate.Comparison( column, Operator.LESS_OR_EQUAL, value ) );
 	}
 	
 	/**
@@ -178,41 +361,38 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnInSet( String column, Object[] set ) {
-		readySelection();
-		selection.append( column ).append( " IN (" );
-		joinInSelection( set );
-		selection.append( ")" );
-		return this;
+		if ( inSetMode == InSetMode.BOUND ) {
+			return whereColumnInBoundSet( column, toSelectionArgs( set ), false );
+		}
+		return where( new Predicate.InSet( column, toSelectionArgs( set ), false, false ) );
 	}
 	
 	/**
 	 * Requires the specified column to be one of the specified longs.<br />
-	 * Similar to the SQL expression <tt>[column] IN ([set])</tt>
+	 * Similar to the SQL expression <tt>[column] IN ([set])</tt><br />
+	 * <br />
+	 * The values are sorted and duplicates removed, and every run of at least three consecutive
+	 * values is written as <tt>[column] BETWEEN ? AND ?</tt>. The column must hold integers.
 	 * @param column
 	 * @param set
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnInSet( String column, long[] set ) {
-		readySelection();
-		selection.append( column ).append( " IN (" );
-		joinInSelection( set );
-		selection.append( ")" );
-		return this;
+		return whereColumnInRanges( column, set, false );
 	}
 	
 	/**
 	 * Requires the specified column to be one of the specified integers.<br />
-	 * Similar to the SQL expression <tt>[column] IN ([set])</tt>
+	 * Similar to the SQL expression <tt>[column] IN ([set])</tt><br />
+	 * <br />
+	 * The values are sorted and duplicates removed, and every run of at least three consecutive
+	 * values is written as <tt>[column] BETWEEN ? AND ?</tt>. The column must hold integers.
 	 * @param column
 	 * @param set
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnInSet( String column, int[] set ) {
-		readySelection();
-		selection.append( column ).append( " IN (" );
-		joinInSelection( set );
-		selection.append( ")" );
-		return this;
+		return whereColumnInRanges( column, toLongs( set ), false );
 	}
 	
 	/**
@@ -223,40 +403,73 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnNotInSet( String column, Object[] set ) {
-		readySelection();
-		selection.append( column ).append( " NOT IN (" );
-		joinInSelection( set );
-		selection.append( ")" );
-		return this;
+		if ( inSetMode == InSetMode.BOUND ) {
+			return whereColumnInBoundSet( column, toSelectionArgs( set ), true );
+		}
+		return where( new Predicate.InSet( column, toSelectionArgs( set ), true, false ) );
 	}
 	
 	/**
 	 * Requires the specified column to not be one of the specified longs.<br />
-	 * Similar to the SQL expression <tt>[column] NOT IN ([set])</tt>
+	 * Similar to the SQL expression <tt>[column] NOT IN ([set])</tt><br />
+	 * <br />
+	 * The values are sorted and duplicates removed, and every run of at least three consecutive
+	 * values is written as <tt>[column] NOT BETWEEN ? AND ?</tt>. The column must hold integers.
 	 * @param column
 	 * @param set
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnNotInSet( String column, long[] set ) {
-		readySelection();
-		selection.append( column ).append( " NOT IN (" );
-		joinInSelection( set );
-		selection.append( ")" );
-		return this;
+		return whereColumnInRanges( column, set, true );
 	}
 	
 	/**
 	 * Requires the specified column to not be one of the specified integers.<br />
-	 * Similar to the SQL expression <tt>[column] NOT IN ([set])</tt>
+	 * Similar to the SQL expression <tt>[column] NOT IN ([set])</tt><br />
+	 * <br />
+	 * The values are sorted and duplicates removed, and every run of at least three consecutive
+	 * values is written as <tt>[column] NOT BETWEEN ? AND ?</tt>. The column must hold integers.
 	 * @param column
 	 * @param set
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder whereColumnNotInSet( String column, int[] set ) {
-		readySelection();
-		selection.append( column ).append( " NOT IN (" );
-		joinInSelection( set );
-		selection.append( ")" );
+		return whereColumnInRanges( column, toLongs( set ), true );
+	}
+	
+	/**
+	 * Sets how the values of subsequent <tt>whereColumnInSet</tt> and <tt>whereColumnNotInSet</tt>
+	 * calls are put into the selection. The default is {@link InSetMode#LITERAL}.<br />
+	 * <br />
+	 * In {@link InSetMode#BOUND} mode, one IN set binding more than {@link #SQLITE_MAX_VARIABLE_NUMBER}
+	 * arguments is split into several queries, updates or deletes. Any further oversized set, and any oversized
+	 * NOT IN set, can't be split and is written literally into the selection instead.
+	 * @param mode
+	 * @return The QueryBuilder instance for chaining method calls
+	 */
+	public QueryBuilder setInSetMode( InSetMode mode ) {
+		this.inSetMode = mode;
+		return this;
+	}
+	
+	/**
+	 * Declares columns with INTEGER, REAL or NUMERIC affinity, on which SQLite compares the selection arguments as numbers.<br />
+	 * <br />
+	 * Bounds on such columns given as numbers, e.g. <tt>whereColumnGreaterThan( "age", 10 )</tt>, are merged with
+	 * each other and with equalities, so a selection like <tt>age&gt;10 AND age&gt;9</tt> is written as <tt>age&gt;10</tt>, and one
+	 * like <tt>age=5 AND age&gt;7</tt> is never sent to the provider. On other columns, the arguments may be compared
+	 * as text, where <tt>'10'&lt;'9'</tt>, so their bounds are left as they are.<br />
+	 * The declaration also applies to the QueryBuilders given to {@link #whereAnyOf(QueryBuilder...)} and {@link #whereNot(QueryBuilder)}.
+	 * Note that subsequent calls to this method will replace the columns declared earlier.
+	 * @param columns
+	 * @return The QueryBuilder instance for chaining method calls
+	 */
+	public QueryBuilder setNumericColumns( String... columns ) {
+		HashSet<String> set = new HashSet<String>( Arrays.asList( columns ) );
+		if ( !set.equals( numericColumns ) ) {
+			this.numericColumns = set;
+			invalidateSelection();
+		}
 		return this;
 	}
 	
@@ -267,12 +480,38 @@ public class QueryBuilder {
 	 * @return The QueryBuilder instance for chaining method calls
 	 */
 	public QueryBuilder addSelection( String extraSelection, Object... extraSelectionArgs ) {
-		readySelection();
-		selection.append( extraSelection );
-		for ( Object arg: extraSelectionArgs ) {
-			selectionArgs.add( arg == null ? null : arg.toString() );
+		return where( new Predicate.Raw( extraSelection, toSelectionArgs( extraSelectionArgs ) ) );
+	}
+	
+	/**
+	 * Requires the selection of at least one of the specified QueryBuilders to be true.<br />
+	 * Similar to the SQL expression <tt>([selection] OR [selection] ...)</tt><br />
+	 * <br />
+	 * Only the <tt>where</tt>-methods of the alternatives are used, e.g.<br />
+	 * <tt>whereAnyOf( new QueryBuilder().whereColumnEquals( "a", 1 ), new QueryBuilder().whereColumnIsNull( "b" ) )</tt>
+	 * @param alternatives
+	 * @return The QueryBuilder instance for chaining method calls
+	 * @throws IllegalArgumentException If an alternative has a search or an IN set split into chunks
+	 */
+	public QueryBuilder whereAnyOf( QueryBuilder... alternatives ) {
+		ArrayList<Predicate> predicates = new ArrayList<Predicate>( alternatives.length );
+		for ( QueryBuilder alternative: alternatives ) {
+			predicates.add( alternative.getWherePredicate() );
 		}
-		return this;
+		return where( new Predicate.Or( predicates ) );
+	}
+	
+	/**
+	 * Requires the selection of the specified QueryBuilder to be false.<br />
+	 * Similar to the SQL expression <tt>NOT ([selection])</tt><br />
+	 * <br />
+	 * Only the <tt>where</tt>-methods of the condition are used.
+	 * @param condition
+	 * @return The QueryBuilder instance for chaining method calls
+	 * @throws IllegalArgumentException If the condition has a search or an IN set split into chunks
+	 */
+	public QueryBuilder whereNot( QueryBuilder condition ) {
+		return where( new Predicate.Not( condition.getWherePredicate() ) );
 	}
 	
 	/**
@@ -282,7 +521,10 @@ public class QueryBuilder {
 	 * @return
 	 */
 	public QueryBuilder setSearchColumns( String... columns ) {
-		this.searchColumns = columns;
+		if ( !Arrays.equals( this.searchColumns, columns ) ) {
+			this.searchColumns = columns == null ? new String[0] : columns;
+			invalidateSearch();
+		}
 		return this;
 	}
 	
@@ -297,19 +539,126 @@ public class QueryBuilder {
 	 * @return
 	 */
 	public QueryBuilder setSearchQuery( String query ) {
+		String[] tokens;
 		if ( TextUtils.isEmpty( query ) ) {
 			
-			this.searchQueryTokens = new String[ 0 ];
+			tokens = new String[ 0 ];
 			
 		} else {
 		
 			StringTokenizer tokenizer = new StringTokenizer( query );
-			this.searchQueryTokens = new String[ tokenizer.countTokens() ];
+			tokens = new String[ tokenizer.countTokens() ];
 			for ( int index = 0; tokenizer.hasMoreTokens(); index++ ) {
-				this.searchQueryTokens[ index ] = tokenizer.nextToken();
+				tokens[ index ] = tokenizer.nextToken();
 			}
 			
 		}
+		
+		// Typing whitespace or re-running the same filter doesn't change the selection
+		if ( !Arrays.equals( this.searchQueryTokens, tokens ) ) {
+			this.searchQueryTokens = tokens;
+			invalidateSearch();
+		}
+		return this;
+	}
+	
+	/**
+	 * Sets how the search query is matched against the search columns. The default is {@link SearchMode#LIKE}.
+	 * @param mode
+	 * @return The QueryBuilder instance for chaining method calls
+	 */
+	public QueryBuilder setSearchMode( SearchMode mode ) {
+		if ( this.searchMode != mode ) {
+			this.searchMode = mode;
+			invalidateSearch();
+		}
+		return this;
+	}
+	
+	/**
+	 * Enables answering a search from the previous result when possible, instead of querying again.<br />
+	 * <br />
+	 * When the search query is extended so that it can only match a subset of the previous result
+	 * (e.g. when "jo" becomes "joh" or "jo sm"), and that result had no more than <tt>maxRows</tt> rows,
+	 * <tt>query</tt> filters the previous rows in memory. Otherwise it queries the provider,
+	 * and remembers the result if it's small enough.<br />
+	 * <br />
+	 * This works in {@link SearchMode#LIKE} and {@link SearchMode#PREFIX_GLOB} mode, when every
+	 * search column is in the projection. A remembered result is forgotten when a change is notified
+	 * on its URI, and after a few seconds at most. Results queried through a ContentProviderClient are not
+	 * remembered, since their changes can't be observed.<br />
+	 * Copies of this QueryBuilder, such as those used by {@link #createSearchFilterQueryProvider(Context, Uri)}
+	 * and {@link TypeAheadSearch}, share the remembered result.
+	 * @param maxRows The maximum number of rows to remember, or 0 to disable
+	 * @return The QueryBuilder instance for chaining method calls
+	 */
+	public QueryBuilder setIncrementalSearch( int maxRows ) {
+		this.searchRefinement = maxRows > 0 ? new SearchRefinement( maxRows ) : null;
+		return this;
+	}
+	
+	/**
+	 * Sets a cache for the results of {@link #query(Context, Uri)}, which may be shared
+	 * with other QueryBuilders. Use null (the default) to query the provider every time.<br />
+	 * <br />
+	 * Selections split into several statements are never cached.
+	 * @param cache
+	 * @return The QueryBuilder instance for chaining method calls
+	 * @see QueryCache
+	 */
+	public QueryBuilder setQueryCache( QueryCache cache ) {
+		this.queryCache = cache;
+		return this;
+	}
+	
+	/**
+	 * Sets a deduplicator that makes identical queries issued at the same time, by this or other
+	 * QueryBuilders sharing the deduplicator, run only once. Use null (the default) to disable.<br />
+	 * <br />
+	 * Used by {@link #query(Context, Uri)} and the loaders from {@link #createCursorLoader(Context, Uri)}.
+	 * Selections split into several statements are never deduplicated.
+	 * @param deduplicator
+	 * @return The QueryBuilder instance for chaining method calls
+	 * @see QueryDeduplicator
+	 */
+	public QueryBuilder setQueryDeduplicator( QueryDeduplicator deduplicator ) {
+		this.queryDeduplicator = deduplicator;
+		return this;
+	}
+	
+	/**
+	 * Sets the executor that runs the queries of <tt>queryAsync</tt> and {@link TypeAheadSearch}.
+	 * Use null (the default) for the shared {@link AsyncQueryExecutor#getDefault()}.
+	 * @param executor
+	 * @return The QueryBuilder instance for chaining method calls
+	 */
+	public QueryBuilder setAsyncQueryExecutor( AsyncQueryExecutor executor ) {
+		this.asyncQueryExecutor = executor;
+		return this;
+	}
+	
+	/**
+	 * Gets the executor for background queries
+	 * @return
+	 */
+	AsyncQueryExecutor getAsyncQueryExecutor() {
+		return asyncQueryExecutor != null ? asyncQueryExecutor : AsyncQueryExecutor.getDefault();
+	}
+	
+	/**
+	 * Sets the full-text table searched in {@link SearchMode#FULL_TEXT} mode.<br />
+	 * <br />
+	 * The table must be an FTS3 or FTS4 table with the search columns, and with the
+	 * <tt>docid</tt> of every row equal to the {@link BaseColumns#_ID} of the row it indexes.
+	 * {@link FullTextSearchTable} creates and maintains such a table.
+	 * @param table The name of the full-text table
+	 * @return The QueryBuilder instance for chaining method calls
+	 */
+	public QueryBuilder setFullTextTable( String table ) {
+		if ( !TextUtils.equals( this.fullTextTable, table ) ) {
+			this.fullTextTable = table;
+			invalidateSearch();
+		}
 		return this;
 	}
 	
@@ -328,6 +677,30 @@ public class QueryBuilder {
 		return this;
 	}
 	
+	/**
+	 * Selects the columns read by the row mapper.
+	 * @param mapper
+	 * @return
+	 * @see #select(String...)
+	 */
+	public QueryBuilder select( RowMapper<?> mapper ) {
+		return select( mapper.getProjection() );
+	}
+	
+	/**
+	 * Marks heavy columns, like images stored as blobs, to be loaded only for the rows that are shown.<br />
+	 * <br />
+	 * The deferred columns must not be part of the projection set with {@link #select(String...)},
+	 * which should include the ID column. Read them through a loader created with
+	 * {@link #createDeferredColumnLoader(Context, Uri)}, which fetches them by ID in batches.
+	 * @param columns
+	 * @return
+	 */
+	public QueryBuilder selectDeferred( String... columns ) {
+		this.deferredColumns = columns;
+		return this;
+	}
+	
 	/**
 	 * Sets the row sort order.<br />
 	 * <br />
@@ -343,109 +716,677 @@ public class QueryBuilder {
 
 	/**
 	 * Builds a selection string and an array of arguments to be used directly in
-	 * an query, update or delete call
+	 * an query, update or delete call.<br />
+	 * <br />
+	 * The result is cached, so calling this method again on an unchanged QueryBuilder
+	 * returns the same pair without building anything. Only the parts affected by
+	 * a <tt>where</tt>-method or a new search are rebuilt.<br />
+	 * The returned argument array is shared between calls and must not be modified.
 	 * @return First value of the pair is the selection string, second value is the arguments (both may be null).
 	 * The pair itself will never be null.
+	 * @throws IllegalStateException If the selection contains an IN set that must be split into
+	 * several statements. Use {@link #buildSelections()} instead.
 	 */
 	public Pair<String, String[]> buildSelection() {
+		if ( chunkedSet != null && !isAlwaysFalse() ) {
+			throw new IllegalStateException( "The selection is split into several statements. Use buildSelections()" );
+		}
+		return buildSelectionWithoutChunkedSet();
+	}
+	
+	/**
+	 * Builds the selection strings and arguments for every statement needed to cover the selection.<br />
+	 * <br />
+	 * This is a single selection, as returned by {@link #buildSelection()}, unless an IN set larger
+	 * than {@link #SQLITE_MAX_VARIABLE_NUMBER} was added in {@link InSetMode#BOUND} mode.
+	 * Such a set is split into chunks, and one selection is returned for each chunk.<br />
+	 * Like {@link #buildSelection()}, the result is cached and must not be modified.
+	 * @return The selections. The list is never empty.
+	 */
+	public List<Pair<String, String[]>> buildSelections() {
+		if ( builtSelections != null ) {
+			return builtSelections;
+		}
 		
-		/*
-		 * First build the selection string
-		 */
-		StringBuilder sb = new StringBuilder();
-		if ( searchQueryTokens.length > 0 && searchColumns.length > 0 ) {
-			readySelection();
-			sb.append( selection );
-			/*
-			 * Build single search selection
-			 */
-			StringBuilder sb2 = new StringBuilder();
-			for ( int i = 0; i < searchColumns.length; i++ ) {
-				sb2.append( searchColumns[i] );
-				sb2.append( " LIKE ?" );
-				if ( i < searchColumns.length-1 ) { sb2.append( " OR " ); }
-			}
-			
-			/*
-			 * Build search selection for all tokens
-			 */
-			final String singleSearchSelection = sb2.toString();
-			sb2 = new StringBuilder();
-			for ( int i = 0; i < searchQueryTokens.length; i++ ) {
-				sb2.append( "(" );
-				sb2.append( singleSearchSelection );
-				sb2.append( ")" );
-				if ( i < searchQueryTokens.length-1 ) { sb2.append( " AND " ); }
-			}
-			
-			sb.append( sb2 );
-		} else {
-			sb.append( selection );
+		Pair<String, String[]> base = buildSelectionWithoutChunkedSet();
+		if ( chunkedSet == null || isAlwaysFalse() ) {
+			builtSelections = Collections.singletonList( base );
+			return builtSelections;
 		}
 		
-		String selectionString = sb.length() == 0 ? null : sb.toString();
+		// A range binds two arguments, so leave room for at least one
+		final int chunkSize = SQLITE_MAX_VARIABLE_NUMBER - base.second.length;
+		if ( chunkSize < 2 ) {
+			throw new IllegalStateException( "Too many selection arguments to add an IN set on " + chunkedSet.getColumn() );
+		}
 		
-		/*
-		 * Second, build the selection argument array
-		 */
-		ArrayList<String> argList = new ArrayList<String>( selectionArgs );
-		if ( searchQueryTokens.length > 0 && searchColumns.length > 0 ) {
-			for ( int i = 0; i < searchQueryTokens.length; i++ ) {
-				String arg = String.format( "%%%s%%", searchQueryTokens[i] );
-				for ( int j = 0; j < searchColumns.length; j++ ) {
-					argList.add( arg );
-				}
+		List<Predicate> parts = chunkedSet.split( chunkSize );
+		ArrayList<Pair<String, String[]>> chunks = new ArrayList<Pair<String, String[]>>( parts.size() );
+		for ( Predicate part: parts ) {
+			StringBuilder sb = new StringBuilder();
+			ArrayList<String> args = new ArrayList<String>( base.second.length + chunkSize );
+			if ( base.first != null ) {
+				sb.append( base.first ).append( " AND " );
+				args.addAll( Arrays.asList( base.second ) );
+				part.appendNestedTo( sb, args );
+			} else {
+				part.appendTo( sb, args );
 			}
+			chunks.add( new Pair<String, String[]>( sb.toString(), args.toArray( new String[ args.size() ] ) ) );
 		}
+		builtSelections = chunks;
+		return builtSelections;
+	}
+	
+	/**
+	 * Compiles the defined projection, selection and sort order on the given URI into an immutable query,
+	 * which may be shared between threads and used as a key. Later changes to this QueryBuilder
+	 * don't change the compiled query.<br />
+	 * <br />
+	 * The compiled query doesn't use the query cache, deduplicator or incremental search of this QueryBuilder.
+	 * It keeps the selection as written, before it was normalized, for {@link CompiledQuery#withArgs(Object...)}.
+	 * @param uri
+	 * @return
+	 * @throws IllegalStateException If no projection is defined, or if the selection contains an IN set
+	 * that must be split into several statements
+	 */
+	public CompiledQuery compile( Uri uri ) {
+		validateForQuery();
+		Pair<String, String[]> builtSelection = buildSelection();
 		
-		String[] selectionArgsArray = argList.toArray( new String[ argList.size() ] );
+		// The projection array belongs to the caller, who may change it after the query is compiled
+		final String[] projection = this.projection.clone();
 		
-		return new Pair<String, String[]>( selectionString, selectionArgsArray );
+		// Normalizing depends on the values, so new values can only be bound to the selection as written
+		Predicate written = where.isEmpty() ? Predicate.TRUE : ( where.size() == 1 ? where.get( 0 ) : new Predicate.And( where ) );
+		if ( !written.isRebindable() ) {
+			return new CompiledQuery( uri, projection, builtSelection.first, builtSelection.second, sortOrder );
+		}
+		Pair<String, String[]> writtenSelection = buildSelection( written );
+		return new CompiledQuery( uri, projection, builtSelection.first, builtSelection.second, sortOrder,
+								  writtenSelection.first, writtenSelection.second.length );
 	}
 	
 	/**
-	 * Ensure that we can query, by checking that at least one column is selected for projection.
+	 * Builds the selection from everything but an IN set that has to be split into chunks
 	 */
-	private void validateForQuery() {
-		if ( projection == null || projection.length == 0 ) {
-			throw new IllegalStateException( "No projection defined. Set one with select(String...)" );
+	private Pair<String, String[]> buildSelectionWithoutChunkedSet() {
+		if ( builtSelection != null ) {
+			return builtSelection;
 		}
+		
+		Predicate normalized = getNormalizedWhere();
+		if ( normalized == Predicate.FALSE ) {
+			builtSelection = new Pair<String, String[]>( ALWAYS_FALSE_SELECTION, NO_ARGS );
+			return builtSelection;
+		}
+		builtSelection = buildSelection( normalized );
+		return builtSelection;
 	}
 	
 	/**
-	 * Queries the defined projection, selection and sort order on the given URI through the ContentResolver
-	 * retrieved from the given context
-	 * @param context
-	 * @param uri
+	 * Builds the selection from the given predicates and the search
+	 * @param predicate
 	 * @return
 	 */
-	public Cursor query( Context context, Uri uri ) {
-		validateForQuery();
-		Pair<String, String[]> builtSelection = buildSelection();
-		return context.getContentResolver().query( uri,
-												   projection,
-												   builtSelection.first,
-												   builtSelection.second,
-												   sortOrder );
+	private Pair<String, String[]> buildSelection( Predicate predicate ) {
+		if ( searchSelection == null ) {
+			buildSearchSelection();
+		}
+		
+		StringBuilder sb = new StringBuilder();
+		ArrayList<String> args = new ArrayList<String>();
+		if ( predicate != Predicate.TRUE ) {
+			if ( searchSelection.length() > 0 || chunkedSet != null ) {
+				predicate.appendNestedTo( sb, args );
+			} else {
+				predicate.appendTo( sb, args );
+			}
+		}
+		if ( searchSelection.length() > 0 ) {
+			if ( sb.length() > 0 ) {
+				sb.append( " AND " );
+			}
+			sb.append( searchSelection );
+			args.addAll( Arrays.asList( searchSelectionArgs ) );
+		}
+		return new Pair<String, String[]>( sb.length() == 0 ? null : sb.toString(), args.toArray( new String[ args.size() ] ) );
 	}
+	
 	/**
-	 * Queries the defined projection, selection and sort order on the given URI through the ContentProviderClient
-	 * @param provider
-	 * @param uri
-	 * @return
-	 * @throws RemoteException May be thrown from {@link ContentProviderClient#query(Uri, String[], String, String[], String)}
+	 * @return The predicates of the selection, normalized
 	 */
-	public Cursor query( ContentProviderClient provider, Uri uri ) throws RemoteException {
-		validateForQuery();
-		Pair<String, String[]> builtSelection = buildSelection();
-		return provider.query( uri,
-							   projection,
-							   builtSelection.first,
-							   builtSelection.second,
-							   sortOrder );
+	private Predicate getNormalizedWhere() {
+		if ( normalizedWhere == null ) {
+			normalizedWhere = new Predicate.And( where ).normalize( numericColumns );
+		}
+		return normalizedWhere;
 	}
-	public interface AsyncQueryCallback {
-		public void queryCompleted( Cursor c );
+	
+	/**
+	 * @return Whether the selection can never match any row. Such selections are not sent to the provider.
+	 */
+	private boolean isAlwaysFalse() {
+		return getNormalizedWhere() == Predicate.FALSE;
+	}
+	
+	/**
+	 * @return The predicates of the selection, for using this QueryBuilder as part of another
+	 */
+	private Predicate getWherePredicate() {
+		if ( chunkedSet != null || searchQueryTokens.length > 0 ) {
+			throw new IllegalArgumentException( "A QueryBuilder with a search or a split IN set can't be part of another selection" );
+		}
+		return new Predicate.And( new ArrayList<Predicate>( where ) );
+	}
+	
+	/**
+	 * Builds the free-text search part of the selection and its arguments from
+	 * the current search columns and query tokens
+	 */
+	private void buildSearchSelection() {
+		if ( searchQueryTokens.length == 0 || searchColumns.length == 0 ) {
+			searchSelection = "";
+			searchSelectionArgs = NO_ARGS;
+			return;
+		}
+		
+		switch ( searchMode ) {
+		case PREFIX_RANGE:
+		case PREFIX_GLOB:
+			buildPrefixSearchSelection();
+			break;
+		case FULL_TEXT:
+			buildFullTextSearchSelection();
+			break;
+		default:
+			buildLikeSearchSelection();
+			break;
+		}
+	}
+	
+	/**
+	 * Builds a search selection where every token must be in one of the search columns
+	 */
+	private void buildLikeSearchSelection() {
+		/*
+		 * Build single search selection
+		 */
+		StringBuilder sb = new StringBuilder();
+		for ( int i = 0; i < searchColumns.length; i++ ) {
+			sb.append( searchColumns[i] );
+			sb.append( " LIKE ?" );
+			if ( i < searchColumns.length-1 ) { sb.append( " OR " ); }
+		}
+		
+		/*
+		 * Build search selection for all tokens
+		 */
+		final String singleSearchSelection = sb.toString();
+		sb = new StringBuilder();
+		for ( int i = 0; i < searchQueryTokens.length; i++ ) {
+			sb.append( "(" );
+			sb.append( singleSearchSelection );
+			sb.append( ")" );
+			if ( i < searchQueryTokens.length-1 ) { sb.append( " AND " ); }
+		}
+		searchSelection = sb.toString();
+		
+		String[] args = new String[ searchQueryTokens.length * searchColumns.length ];
+		for ( int i = 0; i < searchQueryTokens.length; i++ ) {
+			String arg = "%" + searchQueryTokens[i] + "%";
+			for ( int j = 0; j < searchColumns.length; j++ ) {
+				args[ i * searchColumns.length + j ] = arg;
+			}
+		}
+		searchSelectionArgs = args;
+	}
+	
+	/**
+	 * Builds a search selection where every token must be a prefix of one of the search columns,
+	 * either as a range or as a GLOB pattern, so that an index on the column can be used
+	 */
+	private void buildPrefixSearchSelection() {
+		final boolean range = searchMode == SearchMode.PREFIX_RANGE;
+		final int argsPerColumn = range ? 2 : 1;
+		
+		/*
+		 * Build single search selection
+		 */
+		StringBuilder sb = new StringBuilder();
+		for ( int i = 0; i < searchColumns.length; i++ ) {
+			if ( range ) {
+				sb.append( searchColumns[i] ).append( ">=? AND " ).append( searchColumns[i] ).append( "<?" );
+			} else {
+				sb.append( searchColumns[i] ).append( " GLOB ?" );
+			}
+			if ( i < searchColumns.length-1 ) { sb.append( " OR " ); }
+		}
+		
+		/*
+		 * Build search selection for all tokens
+		 */
+		final String singleSearchSelection = sb.toString();
+		sb = new StringBuilder();
+		for ( int i = 0; i < searchQueryTokens.length; i++ ) {
+			sb.append( "(" );
+			sb.append( singleSearchSelection );
+			sb.append( ")" );
+			if ( i < searchQueryTokens.length-1 ) { sb.append( " AND " ); }
+		}
+		searchSelection = sb.toString();
+		
+		final int argsPerToken = searchColumns.length * argsPerColumn;
+		String[] args = new String[ searchQueryTokens.length * argsPerToken ];
+		for ( int i = 0; i < searchQueryTokens.length; i++ ) {
+			String token = searchQueryTokens[i];
+			for ( int j = 0; j < searchColumns.length; j++ ) {
+				int index = i * argsPerToken + j * argsPerColumn;
+				if ( range ) {
+					args[ index ] = token;
+					args[ index + 1 ] = token + MAX_CODE_POINT;
+				} else {
+					args[ index ] = escapeGlob( token ) + "*";
+				}
+			}
+		}
+		searchSelectionArgs = args;
+	}
+	
+	/**
+	 * Escape the GLOB wildcards <tt>*</tt>, <tt>?</tt> and <tt>[</tt> in the string,
+	 * so that it only matches itself
+	 * @param string
+	 * @return
+	 */
+	private static String escapeGlob( String string ) {
+		StringBuilder sb = null;
+		for ( int i = 0; i < string.length(); i++ ) {
+			char c = string.charAt( i );
+			if ( c == '*' || c == '?' || c == '[' ) {
+				if ( sb == null ) {
+					sb = new StringBuilder( string.length() + 8 ).append( string, 0, i );
+				}
+				sb.append( '[' ).append( c ).append( ']' );
+			} else if ( sb != null ) {
+				sb.append( c );
+			}
+		}
+		return sb == null ? string : sb.toString();
+	}
+	
+	/**
+	 * Builds a search selection where every token must be a prefix of a word in one of the search
+	 * columns of the full-text table.<br />
+	 * <br />
+	 * Each token is quoted so that it can't be read as an FTS operator. The quoted token is matched
+	 * against each search column with <tt>[column] MATCH ?</tt>, since column filters like
+	 * <tt>column:"token*"</tt> don't apply to quoted tokens.
+	 */
+	private void buildFullTextSearchSelection() {
+		if ( TextUtils.isEmpty( fullTextTable ) ) {
+			throw new IllegalStateException( "No full-text table defined. Set one with setFullTextTable(String)" );
+		}
+		
+		/*
+		 * Build single search selection
+		 */
+		StringBuilder sb = new StringBuilder();
+		sb.append( BaseColumns._ID ).append( " IN (" );
+		for ( int i = 0; i < searchColumns.length; i++ ) {
+			sb.append( "SELECT docid FROM " ).append( fullTextTable ).append( " WHERE " ).append( searchColumns[i] ).append( " MATCH ?" );
+			if ( i < searchColumns.length-1 ) { sb.append( " UNION " ); }
+		}
+		sb.append( ")" );
+		final String singleSearchSelection = sb.toString();
+		
+		/*
+		 * Build search selection for all tokens
+		 */
+		sb = new StringBuilder();
+		ArrayList<String> args = new ArrayList<String>();
+		for ( String token: searchQueryTokens ) {
+			String term = token.replace( "\"", "" );
+			if ( term.length() == 0 ) {
+				continue;
+			}
+			if ( sb.length() > 0 ) {
+				sb.append( " AND " );
+			}
+			sb.append( singleSearchSelection );
+			String arg = "\"" + term + "*\"";
+			for ( int j = 0; j < searchColumns.length; j++ ) {
+				args.add( arg );
+			}
+		}
+		searchSelection = sb.toString();
+		searchSelectionArgs = args.isEmpty() ? NO_ARGS : args.toArray( new String[ args.size() ] );
+	}
+	
+	/**
+	 * Ensure that we can query, by checking that at least one column is selected for projection.
+	 */
+	private void validateForQuery() {
+		if ( projection == null || projection.length == 0 ) {
+			throw new IllegalStateException( "No projection defined. Set one with select(String...)" );
+		}
+	}
+	
+	/**
+	 * @param context
+	 * @param uri
+	 * @return An empty cursor with the defined projection, for a selection that can't match anything,
+	 * which is still notified of changes to the URI
+	 */
+	private Cursor emptyResult( Context context, Uri uri ) {
+		Cursor cursor = new MatrixCursor( projection, 0 );
+		cursor.setNotificationUri( context.getContentResolver(), uri );
+		return cursor;
+	}
+	
+	/**
+	 * Queries the defined projection, selection and sort order on the given URI through the ContentResolver
+	 * retrieved from the given context
+	 * @param context
+	 * @param uri
+	 * @return
+	 */
+	public Cursor query( Context context, Uri uri ) {
+		validateForQuery();
+		if ( queryListeners.isEmpty() ) {
+			return runQuery( context, uri );
+		}
+		
+		final long start = System.nanoTime();
+		buildSelections();
+		final long built = System.nanoTime();
+		Cursor cursor = runQuery( context, uri );
+		final int rows = countRows( cursor );
+		report( Operation.QUERY, uri, built - start, System.nanoTime() - built, rows );
+		return cursor;
+	}
+	
+	private Cursor runQuery( Context context, Uri uri ) {
+		if ( isAlwaysFalse() ) {
+			return emptyResult( context, uri );
+		}
+		if ( isRefinableSearch() ) {
+			Cursor cursor = refineSearch( uri );
+			if ( cursor == null ) {
+				final int generation = searchRefinement.observe( context.getContentResolver(), uri );
+				cursor = rememberSearch( uri, generation, query( context.getContentResolver(), uri, buildSelection() ) );
+			}
+			if ( cursor != null ) {
+				cursor.setNotificationUri( context.getContentResolver(), uri );
+			}
+			return cursor;
+		}
+		
+		List<Pair<String, String[]>> builtSelections = buildSelections();
+		if ( builtSelections.size() == 1 ) {
+			return query( context.getContentResolver(), uri, builtSelections.get( 0 ) );
+		}
+		
+		Cursor[] cursors = new Cursor[ builtSelections.size() ];
+		for ( int i = 0; i < cursors.length; i++ ) {
+			Pair<String, String[]> builtSelection = builtSelections.get( i );
+			cursors[i] = context.getContentResolver().query( uri,
+															 projection,
+															 builtSelection.first,
+															 builtSelection.second,
+															 sortOrder );
+			if ( cursors[i] == null ) {
+				closeCursors( cursors );
+				return null;
+			}
+		}
+		return mergeCursors( cursors );
+	}
+	/**
+	 * Queries the defined projection, selection and sort order on every URI at the same time, e.g. on tables
+	 * with the same columns for different accounts, and returns the rows of all of them in a single cursor.<br />
+	 * <br />
+	 * The queries run in parallel on the calling thread and a shared, bounded pool of background threads,
+	 * so this takes about as long as the slowest query instead of all of them in turn.<br />
+	 * If the sort order is a comma-separated list of columns in the projection, each optionally followed by
+	 * <tt>COLLATE BINARY</tt> or <tt>COLLATE NOCASE</tt> and <tt>ASC</tt> or <tt>DESC</tt>, the rows are merged
+	 * in the sort order as the cursor is read, without sorting them again. Otherwise the rows of each URI
+	 * follow those of the previous URI.<br />
+	 * Must not be called on the main thread.
+	 * @param context
+	 * @param uris
+	 * @return The merged cursor, or null if a query returned null
+	 */
+	public Cursor queryAll( Context context, Uri... uris ) {
+		if ( uris.length == 0 ) {
+			throw new IllegalArgumentException( "No URIs to query" );
+		}
+		validateForQuery();
+		if ( uris.length == 1 ) {
+			return query( context, uris[0] );
+		}
+		
+		// Build the selection before copying, so the copies share it instead of building it again
+		buildSelections();
+		Cursor[] cursors = FanOutQuery.query( context, this, uris );
+		return cursors == null ? null : mergeCursors( cursors );
+	}
+	
+	/**
+	 * Queries the defined projection, selection and sort order on the given URI through the ContentProviderClient
+	 * @param provider
+	 * @param uri
+	 * @return
+	 * @throws RemoteException May be thrown from {@link ContentProviderClient#query(Uri, String[], String, String[], String)}
+	 */
+	public Cursor query( ContentProviderClient provider, Uri uri ) throws RemoteException {
+		validateForQuery();
+		if ( queryListeners.isEmpty() ) {
+			return runQuery( provider, uri );
+		}
+		
+		final long start = System.nanoTime();
+		buildSelections();
+		final long built = System.nanoTime();
+		Cursor cursor = runQuery( provider, uri );
+		final int rows = countRows( cursor );
+		report( Operation.QUERY, uri, built - start, System.nanoTime() - built, rows );
+		return cursor;
+	}
+	
+	private Cursor runQuery( ContentProviderClient provider, Uri uri ) throws RemoteException {
+		if ( isAlwaysFalse() ) {
+			return new MatrixCursor( projection, 0 );
+		}
+		if ( isRefinableSearch() ) {
+			Cursor cursor = refineSearch( uri );
+			if ( cursor == null ) {
+				// Changes can't be observed without a ContentResolver, so the result isn't remembered
+				Pair<String, String[]> builtSelection = buildSelection();
+				cursor = provider.query( uri,
+										 projection,
+										 builtSelection.first,
+										 builtSelection.second,
+										 sortOrder );
+			}
+			return cursor;
+		}
+		
+		List<Pair<String, String[]>> builtSelections = buildSelections();
+		if ( builtSelections.size() == 1 ) {
+			Pair<String, String[]> builtSelection = builtSelections.get( 0 );
+			return provider.query( uri,
+								   projection,
+								   builtSelection.first,
+								   builtSelection.second,
+								   sortOrder );
+		}
+		
+		Cursor[] cursors = new Cursor[ builtSelections.size() ];
+		boolean completed = false;
+		try {
+			for ( int i = 0; i < cursors.length; i++ ) {
+				Pair<String, String[]> builtSelection = builtSelections.get( i );
+				cursors[i] = provider.query( uri,
+											 projection,
+											 builtSelection.first,
+											 builtSelection.second,
+											 sortOrder );
+				if ( cursors[i] == null ) {
+					return null;
+				}
+			}
+			completed = true;
+		} finally {
+			if ( !completed ) {
+				closeCursors( cursors );
+			}
+		}
+		return mergeCursors( cursors );
+	}
+	/**
+	 * Queries a single built selection through the ContentResolver, going through the
+	 * query cache and deduplicator if they are set
+	 * @param resolver
+	 * @param uri
+	 * @param builtSelection
+	 * @return
+	 */
+	private Cursor query( ContentResolver resolver, Uri uri, Pair<String, String[]> builtSelection ) {
+		if ( queryCache != null || queryDeduplicator != null ) {
+			CompiledQuery key = new CompiledQuery( uri, projection.clone(), builtSelection.first, builtSelection.second, sortOrder );
+			return queryCache != null
+					? queryCache.query( key, queryDeduplicator )
+					: queryDeduplicator.query( resolver, key );
+		}
+		return resolver.query( uri,
+							   projection,
+							   builtSelection.first,
+							   builtSelection.second,
+							   sortOrder );
+	}
+	
+	/**
+	 * Counts the rows matching the defined selection, without reading them.<br />
+	 * <br />
+	 * The rows are counted by the provider with the projection <tt>COUNT(*) AS _count</tt>.
+	 * If the provider rejects that projection, or doesn't return a single <tt>_count</tt> value,
+	 * the rows are queried and counted instead. The projection need not be set.
+	 * Must not be called on the main thread.
+	 * @param context
+	 * @param uri
+	 * @return The number of matching rows, or -1 if the query failed
+	 */
+	public int count( Context context, Uri uri ) {
+		if ( isAlwaysFalse() ) {
+			return 0;
+		}
+		ContentResolver resolver = context.getContentResolver();
+		int count = 0;
+		for ( Pair<String, String[]> builtSelection: buildSelections() ) {
+			int chunkCount = countByProjection( resolver, uri, builtSelection );
+			if ( chunkCount == -1 ) {
+				Cursor cursor = resolver.query( uri, getProbeProjection(), builtSelection.first, builtSelection.second, null );
+				if ( cursor == null ) {
+					return -1;
+				}
+				try {
+					chunkCount = cursor.getCount();
+				} finally {
+					cursor.close();
+				}
+			}
+			count += chunkCount;
+		}
+		return count;
+	}
+	
+	/**
+	 * @return The count, or -1 if the provider couldn't count
+	 */
+	private int countByProjection( ContentResolver resolver, Uri uri, Pair<String, String[]> builtSelection ) {
+		Cursor cursor;
+		try {
+			cursor = resolver.query( uri, COUNT_PROJECTION, builtSelection.first, builtSelection.second, null );
+		} catch ( RuntimeException e ) {
+			if ( !isRejectedQuery( e ) ) {
+				throw e;
+			}
+			return -1;
+		}
+		if ( cursor == null ) {
+			return -1;
+		}
+		try {
+			// Providers that ignore the projection return the rows themselves
+			if ( cursor.getCount() != 1 || cursor.getColumnCount() != 1
+					|| !BaseColumns._COUNT.equals( cursor.getColumnName( 0 ) ) || !cursor.moveToFirst() ) {
+				return -1;
+			}
+			return cursor.getInt( 0 );
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Checks whether any row matches the defined selection, reading at most one row.<br />
+	 * <br />
+	 * The provider is asked for a single row with the sort order <tt>_id LIMIT 1</tt>. If the provider
+	 * rejects that, the rows are queried without a limit instead. The projection need not be set.
+	 * Must not be called on the main thread.
+	 * @param context
+	 * @param uri
+	 * @return Whether any row matches. false if the query failed.
+	 */
+	public boolean exists( Context context, Uri uri ) {
+		if ( isAlwaysFalse() ) {
+			return false;
+		}
+		ContentResolver resolver = context.getContentResolver();
+		for ( Pair<String, String[]> builtSelection: buildSelections() ) {
+			Cursor cursor;
+			try {
+				cursor = resolver.query( uri, getProbeProjection(), builtSelection.first, builtSelection.second, BaseColumns._ID + " LIMIT 1" );
+			} catch ( RuntimeException e ) {
+				if ( !isRejectedQuery( e ) ) {
+					throw e;
+				}
+				cursor = resolver.query( uri, getProbeProjection(), builtSelection.first, builtSelection.second, null );
+			}
+			if ( cursor == null ) {
+				return false;
+			}
+			try {
+				if ( cursor.moveToFirst() ) {
+					return true;
+				}
+			} finally {
+				cursor.close();
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @param e
+	 * @return Whether the exception is how a provider rejects a projection or sort order it doesn't support
+	 */
+	private static boolean isRejectedQuery( RuntimeException e ) {
+		return e instanceof IllegalArgumentException
+				|| e instanceof UnsupportedOperationException
+				|| e instanceof SQLiteException;
+	}
+	
+	/**
+	 * @return The defined projection, or just the ID column if none is defined
+	 */
+	private String[] getProbeProjection() {
+		return projection != null && projection.length > 0 ? projection : ID_PROJECTION;
+	}
+	
+	public interface AsyncQueryCallback {
+		public void queryCompleted( Cursor c );
 	}
 	/**
 	 * Queries the defined projection, selection and sort order on a background thread
@@ -457,26 +1398,145 @@ public class QueryBuilder {
 	 * @param callback
 	 */
 	public void queryAsync( Context context, Uri uri, final AsyncQueryCallback callback ) {
+		queryAsync( context, uri, Priority.NORMAL, callback );
+	}
+	/**
+	 * Queries the defined projection, selection and sort order on a background thread
+	 * on the given URI through the ContentResolver retrieved from the given context.<br />
+	 * <br />
+	 * The query waits for queries of higher priority submitted to the same {@link AsyncQueryExecutor}.
+	 * The callback is called on the thread that called this method when the query finishes,
+	 * unless the query was cancelled first. The cursor is closed when the callback returns.<br />
+	 * <br />
+	 * The query runs on a copy of this QueryBuilder, so it may be changed right away.
+	 * @param context
+	 * @param uri
+	 * @param priority
+	 * @param callback
+	 * @return A token for cancelling the query
+	 */
+	public CancellationToken queryAsync( final Context context, final Uri uri, Priority priority, final AsyncQueryCallback callback ) {
 		validateForQuery();
-		AsyncQueryHandler aqh = new AsyncQueryHandler( context.getContentResolver() ) {
+		final QueryBuilder snapshot = new QueryBuilder( this );
+		return getAsyncQueryExecutor().submit( priority, new AsyncQueryExecutor.Task<Cursor>() {
 			@Override
-			protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
-				callback.queryCompleted(cursor);
-				if ( !cursor.isClosed() ) {
+			protected Cursor run() {
+				if ( queryListeners.isEmpty() ) {
+					Cursor cursor = snapshot.runQuery( context, uri );
+					// Fill the cursor window in the background
+					countRows( cursor );
+					return cursor;
+				}
+				
+				final long start = System.nanoTime();
+				snapshot.buildSelections();
+				final long built = System.nanoTime();
+				Cursor cursor = snapshot.runQuery( context, uri );
+				final int rows = countRows( cursor );
+				snapshot.report( Operation.QUERY_ASYNC, uri, built - start, System.nanoTime() - built, rows );
+				return cursor;
+			}
+			
+			@Override
+			protected void deliver( Cursor cursor ) {
+				callback.queryCompleted( cursor );
+				discard( cursor );
+			}
+			
+			@Override
+			protected void discard( Cursor cursor ) {
+				if ( cursor != null && !cursor.isClosed() ) {
 					cursor.close();
 				}
 			}
+		} );
+	}
+	
+	/**
+	 * Queries the columns read by the row mapper with the defined selection and sort order
+	 * on the given URI, and reads every row with the mapper.<br />
+	 * <br />
+	 * The projection of this QueryBuilder is not changed.
+	 * @param context
+	 * @param uri
+	 * @param mapper
+	 * @return The rows, or null if the query failed
+	 */
+	public <T> List<T> query( Context context, Uri uri, RowMapper<T> mapper ) {
+		Cursor cursor = new QueryBuilder( this ).select( mapper ).query( context, uri );
+		if ( cursor == null ) {
+			return null;
+		}
+		try {
+			return mapper.mapAll( cursor );
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Queries the defined projection, selection and sort order on the given URI, and copies the
+	 * whole result into a {@link ColumnarSnapshot}. Must not be called on the main thread.
+	 * @param context
+	 * @param uri
+	 * @return The snapshot, or null if the query failed
+	 */
+	public ColumnarSnapshot snapshot( Context context, Uri uri ) {
+		Cursor cursor = query( context, uri );
+		if ( cursor == null ) {
+			return null;
+		}
+		try {
+			return ColumnarSnapshot.read( cursor );
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	public interface SnapshotCallback {
+		public void snapshotCompleted( ColumnarSnapshot snapshot );
+	}
+	/**
+	 * Queries the defined projection, selection and sort order on a background thread, and copies
+	 * the whole result into a {@link ColumnarSnapshot} there.<br />
+	 * <br />
+	 * The callback is called on the thread that called this method when the snapshot is ready.
+	 * @param context
+	 * @param uri
+	 * @param callback
+	 * @return A token for cancelling the query
+	 * @see #snapshotAsync(Context, Uri, Priority, SnapshotCallback)
+	 */
+	public CancellationToken snapshotAsync( Context context, Uri uri, SnapshotCallback callback ) {
+		return snapshotAsync( context, uri, Priority.NORMAL, callback );
+	}
+	/**
+	 * Queries the defined projection, selection and sort order on a background thread, and copies
+	 * the whole result into a {@link ColumnarSnapshot} there.<br />
+	 * <br />
+	 * Like {@link #queryAsync(Context, Uri, Priority, AsyncQueryCallback)}, the query runs on a copy of
+	 * this QueryBuilder, and the callback is called on the thread that called this method,
+	 * unless the query was cancelled first. The callback receives null if the query failed.
+	 * @param context
+	 * @param uri
+	 * @param priority
+	 * @param callback
+	 * @return A token for cancelling the query
+	 */
+	public CancellationToken snapshotAsync( final Context context, final Uri uri, Priority priority, final SnapshotCallback callback ) {
+		validateForQuery();
+		final QueryBuilder snapshot = new QueryBuilder( this );
+		return getAsyncQueryExecutor().submit( priority, new AsyncQueryExecutor.Task<ColumnarSnapshot>() {
+			@Override
+			protected ColumnarSnapshot run() {
+				return snapshot.snapshot( context, uri );
+			}
 			
-		};
-		
-		Pair<String, String[]> builtSelection = buildSelection();
-		aqh.startQuery(0,
-					   null,
-					   uri,
-					   projection,
-					   builtSelection.first,
-					   builtSelection.second,
-					   sortOrder );
+			@Override
+			protected void deliver( ColumnarSnapshot result ) {
+				callback.snapshotCompleted( result );
+			}
+		} );
 	}
 	
 	/**
@@ -488,29 +1548,232 @@ public class QueryBuilder {
 	 */
 	public CursorLoader createCursorLoader( Context context, Uri uri ) {
 		validateForQuery();
+		final List<Pair<String, String[]>> builtSelections = buildSelections();
+		if ( builtSelections.size() == 1 && queryCache == null && queryDeduplicator == null && !isAlwaysFalse() ) {
+			Pair<String, String[]> builtSelection = builtSelections.get( 0 );
+			return new CursorLoader(context,
+									uri,
+									projection,
+									   builtSelection.first,
+									   builtSelection.second,
+									sortOrder );
+		}
+		
+		/*
+		 * The selection is split into chunks, must go through the cache or deduplicator, or can't match
+		 * anything, so load it the same way query(Context, Uri) does, from a copy of this QueryBuilder
+		 */
+		final QueryBuilder snapshot = new QueryBuilder( this );
+		final Uri loaderUri = uri;
+		return new CursorLoader( context, uri, projection, null, null, sortOrder ) {
+			@Override
+			public Cursor loadInBackground() {
+				Cursor cursor = snapshot.query( getContext(), loaderUri );
+				if ( cursor != null ) {
+					// Ensure the cursor window is filled, and reload when the data changes
+					cursor.getCount();
+					cursor.registerContentObserver( new ForceLoadContentObserver() );
+				}
+				return cursor;
+			}
+		};
+	}
+	
+	/**
+	 * Queries a single page of the defined projection and selection, sorted by the specified column
+	 * and then by {@link BaseColumns#_ID}.<br />
+	 * <br />
+	 * Instead of skipping rows with <tt>OFFSET</tt>, the page starts right after the row given by the
+	 * token, so every page costs the same no matter how deep it is. Get the token for the next page
+	 * with {@link PageToken#afterLastRow(Cursor, String)}, or use a {@link PageIterator}.<br />
+	 * <br />
+	 * The projection must include the sort column and the ID column.
+	 * The sort column must hold INTEGER, REAL or TEXT values or NULL, and only INTEGER or TEXT before Android 3.0,
+	 * as described in {@link PageToken}.
+	 * The sort order set with {@link #orderBy(String)} is not used, and the provider must accept
+	 * a <tt>LIMIT</tt> clause appended to the sort order, as SQLite-backed providers do.
+	 * @param context
+	 * @param uri
+	 * @param sortColumn The column to sort and seek by
+	 * @param descending Whether to sort in descending order
+	 * @param after The token of the previous page, or null for the first page
+	 * @param pageSize The maximum number of rows in the page
+	 * @return
+	 * @throws IllegalStateException If the selection is split into several statements
+	 */
+	public Cursor queryPage( Context context, Uri uri, String sortColumn, boolean descending, PageToken after, int pageSize ) {
+		validateForQuery();
+		if ( isAlwaysFalse() ) {
+			return emptyResult( context, uri );
+		}
 		Pair<String, String[]> builtSelection = buildSelection();
-		return new CursorLoader(context,
-								uri,
-								projection,
-								   builtSelection.first,
-								   builtSelection.second,
-								sortOrder );
+		
+		final String direction = descending ? " DESC" : " ASC";
+		final String pageSortOrder;
+		if ( BaseColumns._ID.equals( sortColumn ) ) {
+			pageSortOrder = BaseColumns._ID + direction + " LIMIT " + pageSize;
+		} else {
+			pageSortOrder = sortColumn + direction + "," + BaseColumns._ID + direction + " LIMIT " + pageSize;
+		}
+		
+		if ( after != null ) {
+			/*
+			 * Seek past the previous page. This is the row value comparison
+			 * (sortColumn, _id) > (?, ?), written out for SQLite versions without row values.
+			 * SQLite sorts NULL before every other value, so NULL sort values are compared with IS NULL
+			 */
+			final String comparison = descending ? "<?" : ">?";
+			final String id = Long.toString( after.getId() );
+			final String seekSelection;
+			final String[] seekArgs;
+			if ( BaseColumns._ID.equals( sortColumn ) ) {
+				seekSelection = BaseColumns._ID + comparison;
+				seekArgs = new String[] { id };
+			} else if ( after.getSortValue() == null ) {
+				// Ascending, the NULL rows are followed by all others. Descending, they are the last rows
+				seekSelection = descending
+						? "(" + sortColumn + " IS NULL AND " + BaseColumns._ID + comparison + ")"
+						: "(" + sortColumn + " IS NULL AND " + BaseColumns._ID + comparison + " OR " + sortColumn + " IS NOT NULL)";
+				seekArgs = new String[] { id };
+			} else {
+				// Descending, the NULL rows follow all others
+				seekSelection = "(" + sortColumn + comparison + " OR " + sortColumn + "=? AND " + BaseColumns._ID + comparison
+						+ ( descending ? " OR " + sortColumn + " IS NULL)" : ")" );
+				seekArgs = new String[] { after.getSortValue(), after.getSortValue(), id };
+			}
+			builtSelection = appendSelection( builtSelection, seekSelection, seekArgs );
+		}
+		
+		return context.getContentResolver().query( uri,
+												   projection,
+												   builtSelection.first,
+												   builtSelection.second,
+												   pageSortOrder );
+	}
+	
+	/**
+	 * Creates an iterator that queries the defined projection and selection one page at a time,
+	 * using {@link #queryPage(Context, Uri, String, boolean, PageToken, int)}
+	 * @param context
+	 * @param uri
+	 * @param sortColumn The column to sort and seek by
+	 * @param descending Whether to sort in descending order
+	 * @param pageSize The maximum number of rows in each page
+	 * @return
+	 */
+	public PageIterator createPageIterator( Context context, Uri uri, String sortColumn, boolean descending, int pageSize ) {
+		return new PageIterator( this, context, uri, sortColumn, descending, pageSize );
+	}
+	
+	/**
+	 * Creates a loader for the columns set with {@link #selectDeferred(String...)}, with a cache of
+	 * {@link DeferredColumnLoader#DEFAULT_CACHE_BYTES}. Must be called on a thread with a Looper.
+	 * @param context
+	 * @param uri The URI to load the rows from, by ID
+	 * @return
+	 * @see DeferredColumnLoader
+	 */
+	public DeferredColumnLoader createDeferredColumnLoader( Context context, Uri uri ) {
+		return createDeferredColumnLoader( context, uri, DeferredColumnLoader.DEFAULT_CACHE_BYTES );
 	}
 	
 	/**
-	 * Creates a SearchFilterProvider that searches through the columns set in {@link #setSearchColumns(String...)}.
+	 * Creates a loader for the columns set with {@link #selectDeferred(String...)}.
+	 * Must be called on a thread with a Looper.
+	 * @param context
+	 * @param uri The URI to load the rows from, by ID
+	 * @param cacheBytes The maximum size in bytes of the loaded rows to keep
+	 * @return
+	 * @see DeferredColumnLoader
+	 */
+	public DeferredColumnLoader createDeferredColumnLoader( Context context, Uri uri, int cacheBytes ) {
+		if ( deferredColumns == null || deferredColumns.length == 0 ) {
+			throw new IllegalStateException( "No deferred columns. Call selectDeferred() first." );
+		}
+		return new DeferredColumnLoader( context, uri, deferredColumns, getAsyncQueryExecutor(), cacheBytes );
+	}
+	
+	public interface RowConsumer {
+		/**
+		 * Receives a row. The cursor must not be moved or closed.
+		 * @param row A cursor positioned at the row
+		 * @return true to receive the next row, false to stop reading
+		 */
+		public boolean consumeRow( Cursor row );
+	}
+	/**
+	 * Reads every row matching the defined projection and selection, handing the rows
+	 * to the consumer one at a time, for reading results too large to hold in one cursor.<br />
+	 * <br />
+	 * The rows are read in pages with {@link #queryPage(Context, Uri, String, boolean, PageToken, int)},
+	 * each sized to fit in a single cursor window based on the measured size of the rows.
+	 * The next page isn't queried until the consumer has taken every row of the current page,
+	 * and only one page is open at a time, so memory use is bounded however many rows there are.<br />
+	 * <br />
+	 * Runs on the calling thread, which must not be the main thread. The projection must include
+	 * the sort column and the ID column, and the sort column must be of a type <tt>queryPage</tt> can seek by.
+	 * @param context
+	 * @param uri
+	 * @param sortColumn The column to sort and seek by. Ties are broken by the ID column.
+	 * @param descending Whether to sort in descending order
+	 * @param consumer
+	 * @return The number of rows handed to the consumer
+	 */
+	public int stream( Context context, Uri uri, String sortColumn, boolean descending, RowConsumer consumer ) {
+		return new RowStream( this, context, uri, sortColumn, descending ).run( consumer );
+	}
+	
+	/**
+	 * Queries the defined projection, selection and sort order in the background, and queries
+	 * again whenever a change is notified on the URI, delivering every changed result to the observer.<br />
+	 * <br />
+	 * Bursts of change notifications cause at most one query per minimum interval, and
+	 * results equal to the previous one are not delivered. Must be called on a thread with a Looper.
+	 * @param context
+	 * @param uri
+	 * @param observer Receives the results on the thread that calls this method
+	 * @return The subscription, to be unsubscribed when the results are no longer needed
+	 * @see QuerySubscription
+	 */
+	public QuerySubscription observe( Context context, Uri uri, QuerySubscription.Observer observer ) {
+		validateForQuery();
+		return new QuerySubscription( context, uri, this, observer );
+	}
+	
+	/**
+	 * Creates a SearchFilterProvider that searches through the columns set in {@link #setSearchColumns(String...)}.<br />
+	 * <br />
+	 * The provider searches a copy of this QueryBuilder taken when the provider is created, so
+	 * later changes to this QueryBuilder are not used, and the filter thread never changes it.
 	 * @param context
 	 * @return
 	 */
 	public FilterQueryProvider createSearchFilterQueryProvider( final Context context, final Uri uri ) {
+		final QueryBuilder snapshot = new QueryBuilder( this );
 		return new FilterQueryProvider() {
 			public Cursor runQuery(CharSequence constraint) {
-				setSearchQuery( TextUtils.isEmpty( constraint ) ? null : constraint.toString() );
-				return query( context, uri );
+				// Search on a copy, so the snapshot is never changed and may be shared between threads
+				return new QueryBuilder( snapshot )
+						.setSearchQuery( TextUtils.isEmpty( constraint ) ? null : constraint.toString() )
+						.query( context, uri );
 			}
 		};
 	}
 	
+	/**
+	 * Creates a type-ahead search that searches through the columns set in {@link #setSearchColumns(String...)}
+	 * on a background thread, waiting for the user to pause typing before querying.
+	 * @param context
+	 * @param uri
+	 * @param listener Receives the results on the thread that calls this method
+	 * @return
+	 * @see TypeAheadSearch
+	 */
+	public TypeAheadSearch createTypeAheadSearch( Context context, Uri uri, TypeAheadSearch.ResultListener listener ) {
+		validateForQuery();
+		return new TypeAheadSearch( context, uri, this, listener );
+	}
+	
 	/**
 	 * Updates any row that matches the defined selection, with the specified values.
 	 * @param context
@@ -519,11 +1782,25 @@ public class QueryBuilder {
 	 * @return
 	 */
 	public int update( Context context, ContentValues values, Uri uri ) {
-		Pair<String, String[]> builtSelection = buildSelection();
-		return context.getContentResolver().update( uri,
-													values, 
-													builtSelection.first,
-													builtSelection.second );
+		if ( isAlwaysFalse() ) {
+			return 0;
+		}
+		final boolean timed = !queryListeners.isEmpty();
+		final long start = timed ? System.nanoTime() : 0;
+		List<Pair<String, String[]>> builtSelections = buildSelections();
+		final long built = timed ? System.nanoTime() : 0;
+		
+		int count = 0;
+		for ( Pair<String, String[]> builtSelection: builtSelections ) {
+			count += context.getContentResolver().update( uri,
+														  values, 
+														  builtSelection.first,
+														  builtSelection.second );
+		}
+		if ( timed ) {
+			report( Operation.UPDATE, uri, built - start, System.nanoTime() - built, count );
+		}
+		return count;
 	}
 	
 	/**
@@ -535,11 +1812,25 @@ public class QueryBuilder {
 	 * @throws RemoteException May be thrown from {@link ContentProviderClient#update(Uri, ContentValues, String, String[])}
 	 */
 	public int update( ContentProviderClient provider, ContentValues values, Uri uri ) throws RemoteException {
-		Pair<String, String[]> builtSelection = buildSelection();
-		return provider.update( uri,
-								values, 
-								builtSelection.first,
-								builtSelection.second );
+		if ( isAlwaysFalse() ) {
+			return 0;
+		}
+		final boolean timed = !queryListeners.isEmpty();
+		final long start = timed ? System.nanoTime() : 0;
+		List<Pair<String, String[]>> builtSelections = buildSelections();
+		final long built = timed ? System.nanoTime() : 0;
+		
+		int count = 0;
+		for ( Pair<String, String[]> builtSelection: builtSelections ) {
+			count += provider.update( uri,
+									  values, 
+									  builtSelection.first,
+									  builtSelection.second );
+		}
+		if ( timed ) {
+			report( Operation.UPDATE, uri, built - start, System.nanoTime() - built, count );
+		}
+		return count;
 	}
 	
 	/**
@@ -547,12 +1838,46 @@ public class QueryBuilder {
 	 * <br/>
 	 * To be used in batch operations with {@link ContentProvider#applyBatch(ArrayList)}.
 	 * @return
+	 * @throws IllegalStateException If the selection is split into several statements.
+	 * Use {@link #createUpdateOperations(ContentValues, Uri)} instead.
 	 */
 	public ContentProviderOperation createUpdateOperation( ContentValues values, Uri uri) {
 		Pair<String, String[]> builtSelection = buildSelection();
 		return ContentProviderOperation.newUpdate( uri ).withSelection( builtSelection.first, builtSelection.second ).withValues( values ).build();
 	}
 	
+	/**
+	 * Creates the update operations that together update any row that matches the defined selection,
+	 * with the specified values. There is one operation for each statement returned by {@link #buildSelections()}.<br/>
+	 * <br/>
+	 * To be used in batch operations with {@link ContentProvider#applyBatch(ArrayList)}.
+	 * @param values
+	 * @param uri
+	 * @return
+	 */
+	public ArrayList<ContentProviderOperation> createUpdateOperations( ContentValues values, Uri uri ) {
+		return build( createUpdateOperationBuilders( values, uri ) );
+	}
+	
+	/**
+	 * Creates builders for the operations returned by {@link #createUpdateOperations(ContentValues, Uri)},
+	 * e.g. for setting yield points.
+	 * @param values
+	 * @param uri
+	 * @return
+	 */
+	ArrayList<ContentProviderOperation.Builder> createUpdateOperationBuilders( ContentValues values, Uri uri ) {
+		if ( isAlwaysFalse() ) {
+			return new ArrayList<ContentProviderOperation.Builder>( 0 );
+		}
+		List<Pair<String, String[]>> builtSelections = buildSelections();
+		ArrayList<ContentProviderOperation.Builder> builders = new ArrayList<ContentProviderOperation.Builder>( builtSelections.size() );
+		for ( Pair<String, String[]> builtSelection: builtSelections ) {
+			builders.add( ContentProviderOperation.newUpdate( uri ).withSelection( builtSelection.first, builtSelection.second ).withValues( values ) );
+		}
+		return builders;
+	}
+	
 	/**
 	 * Deletes any row that matches the defined selection.
 	 * @param context
@@ -560,10 +1885,24 @@ public class QueryBuilder {
 	 * @return
 	 */
 	public int delete( Context context, Uri uri ) {
-		Pair<String, String[]> builtSelection = buildSelection();
-		return context.getContentResolver().delete( uri,
-													builtSelection.first,
-													builtSelection.second );
+		if ( isAlwaysFalse() ) {
+			return 0;
+		}
+		final boolean timed = !queryListeners.isEmpty();
+		final long start = timed ? System.nanoTime() : 0;
+		List<Pair<String, String[]>> builtSelections = buildSelections();
+		final long built = timed ? System.nanoTime() : 0;
+		
+		int count = 0;
+		for ( Pair<String, String[]> builtSelection: builtSelections ) {
+			count += context.getContentResolver().delete( uri,
+														  builtSelection.first,
+														  builtSelection.second );
+		}
+		if ( timed ) {
+			report( Operation.DELETE, uri, built - start, System.nanoTime() - built, count );
+		}
+		return count;
 	}
 	
 	/**
@@ -574,10 +1913,24 @@ public class QueryBuilder {
 	 * @throws RemoteException
 	 */
 	public int delete( ContentProviderClient provider, Uri uri ) throws RemoteException {
-		Pair<String, String[]> builtSelection = buildSelection();
-		return provider.delete( uri,
-								builtSelection.first,
-								builtSelection.second );
+		if ( isAlwaysFalse() ) {
+			return 0;
+		}
+		final boolean timed = !queryListeners.isEmpty();
+		final long start = timed ? System.nanoTime() : 0;
+		List<Pair<String, String[]>> builtSelections = buildSelections();
+		final long built = timed ? System.nanoTime() : 0;
+		
+		int count = 0;
+		for ( Pair<String, String[]> builtSelection: builtSelections ) {
+			count += provider.delete( uri,
+									  builtSelection.first,
+									  builtSelection.second );
+		}
+		if ( timed ) {
+			report( Operation.DELETE, uri, built - start, System.nanoTime() - built, count );
+		}
+		return count;
 	}
 	
 	/**
@@ -586,56 +1939,296 @@ public class QueryBuilder {
 	 * To be used in batch operations with {@link ContentProvider#applyBatch(ArrayList)}.
 	 * @param uri
 	 * @return
+	 * @throws IllegalStateException If the selection is split into several statements.
+	 * Use {@link #createDeleteOperations(Uri)} instead.
 	 */
 	public ContentProviderOperation createDeleteOperation( Uri uri ) {
 		Pair<String, String[]> builtSelection = buildSelection();
 		return ContentProviderOperation.newDelete( uri ).withSelection( builtSelection.first, builtSelection.second ).build();
 	}
-
+	
 	/**
-	 * Make ready for another expression by appending "<tt> AND </tt>" if the selection
-	 * is non-empty
+	 * Creates the delete operations that together delete any row that matches the defined selection.
+	 * There is one operation for each statement returned by {@link #buildSelections()}.<br/>
+	 * <br/>
+	 * To be used in batch operations with {@link ContentProvider#applyBatch(ArrayList)}.
+	 * @param uri
+	 * @return
 	 */
-	private void readySelection() {
-		if ( selection.length() > 0 ) {
-			selection.append( " AND " );
+	public ArrayList<ContentProviderOperation> createDeleteOperations( Uri uri ) {
+		return build( createDeleteOperationBuilders( uri ) );
+	}
+	
+	/**
+	 * Creates builders for the operations returned by {@link #createDeleteOperations(Uri)},
+	 * e.g. for setting yield points.
+	 * @param uri
+	 * @return
+	 */
+	ArrayList<ContentProviderOperation.Builder> createDeleteOperationBuilders( Uri uri ) {
+		if ( isAlwaysFalse() ) {
+			return new ArrayList<ContentProviderOperation.Builder>( 0 );
+		}
+		List<Pair<String, String[]>> builtSelections = buildSelections();
+		ArrayList<ContentProviderOperation.Builder> builders = new ArrayList<ContentProviderOperation.Builder>( builtSelections.size() );
+		for ( Pair<String, String[]> builtSelection: builtSelections ) {
+			builders.add( ContentProviderOperation.newDelete( uri ).withSelection( builtSelection.first, builtSelection.second ) );
 		}
+		return builders;
 	}
 	
 	/**
-	 * Append the objects in the array to the selection, each separated by a comma
-	 * @param objects
+	 * Build all the operation builders
+	 * @param builders
+	 * @return
 	 */
-	private void joinInSelection( Object[] objects ) {
-		for ( int i = 0; i < objects.length; i++ ) {
-			selection.append( objects[i] );
-			if ( i != objects.length - 1 ) {
-				selection.append( ',' );
+	private static ArrayList<ContentProviderOperation> build( ArrayList<ContentProviderOperation.Builder> builders ) {
+		ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>( builders.size() );
+		for ( ContentProviderOperation.Builder builder: builders ) {
+			operations.add( builder.build() );
+		}
+		return operations;
+	}
+
+	/**
+	 * Add a predicate that must be true
+	 * @param predicate
+	 * @return The QueryBuilder instance for chaining method calls
+	 */
+	private QueryBuilder where( Predicate predicate ) {
+		invalidateSelection();
+		where.add( predicate );
+		return this;
+	}
+	
+	/**
+	 * Discard the cached selection, because a predicate is about to be added or the numeric columns changed
+	 */
+	private void invalidateSelection() {
+		normalizedWhere = null;
+		builtSelection = null;
+		builtSelections = null;
+		selectionFingerprint = null;
+	}
+	
+	/**
+	 * Discard the cached search part of the selection, because the search columns
+	 * or the search query changed
+	 */
+	private void invalidateSearch() {
+		searchSelection = null;
+		searchSelectionArgs = null;
+		builtSelection = null;
+		builtSelections = null;
+		selectionFingerprint = null;
+	}
+	
+	/**
+	 * Requires the specified column to be (or not be) one of the specified values,
+	 * binding the values as selection arguments
+	 * @param column
+	 * @param args
+	 * @param negated Whether this is a NOT IN set
+	 * @return The QueryBuilder instance for chaining method calls
+	 */
+	private QueryBuilder whereColumnInBoundSet( String column, String[] args, boolean negated ) {
+		if ( args.length > SQLITE_MAX_VARIABLE_NUMBER ) {
+			if ( !negated && chunkedSet == null ) {
+				return whereChunkedSet( new Predicate.InSet( column, args, false, true ) );
 			}
+			
+			/*
+			 * Only a single IN set can be split into chunks, and a NOT IN set
+			 * can't be split at all, so write the values directly instead
+			 */
+			return where( new Predicate.InSet( column, args, negated, false ) );
 		}
+		
+		return where( new Predicate.InSet( column, args, negated, true ) );
 	}
+	
 	/**
-	 * Append the longs in the array to the selection, each separated by a comma
-	 * @param objects
+	 * Requires the specified column to be (or not be) one of the specified integers, with runs
+	 * of consecutive integers written as ranges. The values are bound as selection arguments
+	 * in {@link InSetMode#BOUND} mode.
+	 * @param column
+	 * @param set
+	 * @param negated Whether this is a NOT IN set
+	 * @return The QueryBuilder instance for chaining method calls
 	 */
-	private void joinInSelection( long[] objects ) {
-		for ( int i = 0; i < objects.length; i++ ) {
-			selection.append( objects[i] );
-			if ( i != objects.length - 1 ) {
-				selection.append( ',' );
+	private QueryBuilder whereColumnInRanges( String column, long[] set, boolean negated ) {
+		Predicate.InRanges ranges = Predicate.InRanges.compact( column, set, negated, inSetMode == InSetMode.BOUND );
+		if ( ranges.getVariableCount() > SQLITE_MAX_VARIABLE_NUMBER ) {
+			if ( !negated && chunkedSet == null ) {
+				return whereChunkedSet( ranges );
 			}
+			
+			// As in whereColumnInBoundSet(), write the values directly instead
+			ranges = new Predicate.InRanges( column, ranges.starts, ranges.ends, negated, false );
+		}
+		return where( ranges );
+	}
+	
+	/**
+	 * Adds the IN set that is split into chunks by buildSelections()
+	 * @param set
+	 * @return The QueryBuilder instance for chaining method calls
+	 */
+	private QueryBuilder whereChunkedSet( Predicate.SplittableSet set ) {
+		invalidateSelection();
+		chunkedSet = set;
+		return this;
+	}
+	
+	/**
+	 * Whether the current search may be answered from a previous result
+	 */
+	private boolean isRefinableSearch() {
+		return searchRefinement != null
+				&& searchQueryTokens.length > 0
+				&& searchColumns.length > 0
+				&& chunkedSet == null;
+	}
+	
+	/**
+	 * @param uri
+	 * @return The rows of the previous result that match the current search,
+	 * or null if the search must be queried
+	 */
+	private Cursor refineSearch( Uri uri ) {
+		Pair<String, String[]> whereSelection = buildWhereSelection();
+		return searchRefinement.refine( uri, projection, whereSelection.first, Arrays.asList( whereSelection.second ), sortOrder,
+										searchColumns, searchMode, searchQueryTokens );
+	}
+	
+	/**
+	 * Remember the queried result of the current search
+	 * @param uri
+	 * @param generation The generation of the search refinement from before the query
+	 * @param cursor
+	 * @return The cursor to return to the caller
+	 */
+	private Cursor rememberSearch( Uri uri, int generation, Cursor cursor ) {
+		Pair<String, String[]> whereSelection = buildWhereSelection();
+		return searchRefinement.remember( uri, projection, whereSelection.first, Arrays.asList( whereSelection.second ), sortOrder,
+										  searchColumns, searchMode, searchQueryTokens, generation, cursor );
+	}
+	
+	/**
+	 * @return The selection without the search, for telling searches with the same selection apart
+	 * from others. The selection string is never null.
+	 */
+	private Pair<String, String[]> buildWhereSelection() {
+		StringBuilder sb = new StringBuilder();
+		ArrayList<String> args = new ArrayList<String>();
+		getNormalizedWhere().appendTo( sb, args );
+		return new Pair<String, String[]>( sb.toString(), args.toArray( new String[ args.size() ] ) );
+	}
+	
+	/**
+	 * Combine a built selection with an extra expression and its arguments.<br />
+	 * <br />
+	 * The built selection is put in parentheses, since it may be a bare OR that AND would otherwise bind into
+	 * @param builtSelection
+	 * @param extraSelection
+	 * @param extraArgs
+	 * @return A new pair. The built selection is left unchanged.
+	 */
+	private static Pair<String, String[]> appendSelection( Pair<String, String[]> builtSelection, String extraSelection, String[] extraArgs ) {
+		String selectionString = builtSelection.first == null
+				? extraSelection
+				: "(" + builtSelection.first + ") AND " + extraSelection;
+		String[] args = new String[ builtSelection.second.length + extraArgs.length ];
+		System.arraycopy( builtSelection.second, 0, args, 0, builtSelection.second.length );
+		System.arraycopy( extraArgs, 0, args, builtSelection.second.length, extraArgs.length );
+		return new Pair<String, String[]>( selectionString, args );
+	}
+	
+	/**
+	 * Count the rows of a query result, which runs the query of a cursor that is only run when it is first read
+	 * @param cursor
+	 * @return The number of rows, or -1 if the cursor is null
+	 */
+	private static int countRows( Cursor cursor ) {
+		return cursor == null ? -1 : cursor.getCount();
+	}
+	
+	/**
+	 * Report a completed operation to the listeners
+	 * @param operation
+	 * @param uri
+	 * @param buildNanos
+	 * @param providerNanos
+	 * @param rows
+	 */
+	private void report( Operation operation, Uri uri, long buildNanos, long providerNanos, int rows ) {
+		final String fingerprint = getSelectionFingerprint();
+		for ( QueryListener listener: queryListeners ) {
+			listener.operationCompleted( operation, uri, fingerprint, buildNanos, providerNanos, rows );
 		}
 	}
+	
+	private static final Pattern STRING_LITERAL = Pattern.compile( "'(?:[^']|'')*'" );
+	private static final Pattern NUMBER_LITERAL = Pattern.compile( "(?<![\\w.])-?\\d+(?:\\.\\d+)?(?:[eE][+-]?\\d+)?(?![\\w.])" );
+	private static final Pattern VALUE_LIST = Pattern.compile( "\\?(?:\\s*,\\s*\\?)+" );
+	
 	/**
-	 * Append the integers in the array to the selection, each separated by a comma
-	 * @param objects
+	 * The fingerprint is cached like the built selection, so it is only computed again when the selection changes.
+	 * @return The selection with every value replaced by a question mark, and every list of
+	 * question marks shortened to <tt>?,...</tt>, which is the same for calls that only differ in their values
 	 */
-	private void joinInSelection( int[] objects ) {
-		for ( int i = 0; i < objects.length; i++ ) {
-			selection.append( objects[i] );
-			if ( i != objects.length - 1 ) {
-				selection.append( ',' );
+	String getSelectionFingerprint() {
+		if ( selectionFingerprint != null ) {
+			return selectionFingerprint;
+		}
+		String selection = buildSelections().get( 0 ).first;
+		if ( selection == null ) {
+			selectionFingerprint = "";
+			return selectionFingerprint;
+		}
+		selection = STRING_LITERAL.matcher( selection ).replaceAll( "?" );
+		selection = NUMBER_LITERAL.matcher( selection ).replaceAll( "?" );
+		selectionFingerprint = VALUE_LIST.matcher( selection ).replaceAll( "?,..." );
+		return selectionFingerprint;
+	}
+	
+	/**
+	 * Merge the cursors of a selection split into several statements, or of several URIs.
+	 * The merged rows are sorted if the sort order can be merged by {@link SortedMergeCursor},
+	 * and otherwise only sorted within each cursor.
+	 * @param cursors
+	 * @return
+	 */
+	private Cursor mergeCursors( Cursor[] cursors ) {
+		Cursor sorted = SortedMergeCursor.create( cursors, sortOrder );
+		return sorted != null ? sorted : new MergeCursor( cursors );
+	}
+	
+	/**
+	 * Close all non-null cursors in the array
+	 * @param cursors
+	 */
+	private static void closeCursors( Cursor[] cursors ) {
+		for ( Cursor cursor: cursors ) {
+			if ( cursor != null && !cursor.isClosed() ) {
+				cursor.close();
 			}
 		}
 	}
+	
+	private static String[] toSelectionArgs( Object[] objects ) {
+		String[] args = new String[ objects.length ];
+		for ( int i = 0; i < objects.length; i++ ) {
+			args[i] = objects[i] == null ? null : objects[i].toString();
+		}
+		return args;
+	}
+	
+	private static long[] toLongs( int[] objects ) {
+		long[] longs = new long[ objects.length ];
+		for ( int i = 0; i < objects.length; i++ ) {
+			longs[i] = objects[i];
+		}
+		return longs;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,187 @@
+package com.buzzingandroid.content;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+
+/**
+ * An opt-in cache of query results, shared by any number of {@link QueryBuilder}s
+ * through {@link QueryBuilder#setQueryCache(QueryCache)}.<br />
+ * <br />
+ * A result is cached by its URI, projection, built selection, selection arguments and sort order,
+ * so identical queries from different screens are only sent to the provider once.
+ * The cache holds a copy of the rows of each result, and every hit returns a new, independent cursor
+ * over that copy. A result larger than the whole memory budget is never cached, and is returned
+ * as queried instead of as a copy.<br />
+ * <br />
+ * The least recently used results are evicted when the cache grows beyond its memory budget.
+ * A <tt>ContentObserver</tt> is registered for the URI of every cached result, and all results for
+ * a URI are evicted when a change is notified on it, on one of its descendants, or on one of its ancestors.<br />
+ * <br />
+ * Call {@link #close()} when the cache is no longer needed, to unregister the observers.
+ * @author Jesper Borgstrup
+ */
+public class QueryCache {
+	
+	private final ContentResolver resolver;
+	private final LruCache<CompiledQuery, CursorSnapshot> cache;
+	private final HashMap<Uri, ContentObserver> observers = new HashMap<Uri, ContentObserver>();
+	
+	/*
+	 * Incremented on every invalidation, so that a result queried while its data
+	 * changed is not cached
+	 */
+	private final AtomicInteger invalidations = new AtomicInteger();
+	
+	/**
+	 * @param context
+	 * @param maxBytes The memory budget, in (estimated) bytes
+	 */
+	public QueryCache( Context context, int maxBytes ) {
+		this.resolver = context.getContentResolver();
+		this.cache = new LruCache<CompiledQuery, CursorSnapshot>( maxBytes ) {
+			@Override
+			protected int sizeOf( CompiledQuery key, CursorSnapshot value ) {
+				return value.getSizeInBytes();
+			}
+		};
+	}
+	
+	/**
+	 * Returns the cached result of the compiled query, or queries the provider and caches the result
+	 * @param key
+	 * @return
+	 */
+	public Cursor query( CompiledQuery key ) {
+		return query( key, null );
+	}
+	
+	/**
+	 * Returns the cached result of the query, or queries the provider and caches the result
+	 * @param key
+	 * @param deduplicator Used for querying the provider, unless null
+	 * @return
+	 */
+	Cursor query( CompiledQuery key, QueryDeduplicator deduplicator ) {
+		CursorSnapshot snapshot = cache.get( key );
+		if ( snapshot == null ) {
+			observe( key.uri );
+			final int generation = invalidations.get();
+			Cursor cursor = deduplicator != null
+					? deduplicator.query( resolver, key )
+					: key.query( resolver );
+			if ( cursor == null ) {
+				return null;
+			}
+			try {
+				snapshot = CursorSnapshot.read( cursor, cache.maxSize() );
+			} catch ( RuntimeException e ) {
+				cursor.close();
+				throw e;
+			}
+			if ( snapshot == null ) {
+				// Too large to cache, so keep the lazily filled cursor instead of copying it
+				cursor.moveToPosition( -1 );
+				return cursor;
+			}
+			cursor.close();
+			
+			if ( generation == invalidations.get() ) {
+				cache.put( key, snapshot );
+			}
+		}
+		
+		Cursor cursor = snapshot.newCursor();
+		cursor.setNotificationUri( resolver, key.uri );
+		return cursor;
+	}
+	
+	/**
+	 * Register an observer that invalidates the results for the URI, if there isn't one already
+	 * @param uri
+	 */
+	private void observe( final Uri uri ) {
+		synchronized ( observers ) {
+			if ( observers.containsKey( uri ) ) {
+				return;
+			}
+			ContentObserver observer = new ContentObserver( null ) {
+				@Override
+				public void onChange( boolean selfChange ) {
+					invalidate( uri );
+				}
+			};
+			observers.put( uri, observer );
+			resolver.registerContentObserver( uri, true, observer );
+		}
+	}
+	
+	/**
+	 * Evicts every cached result for the URI
+	 * @param uri
+	 */
+	public void invalidate( Uri uri ) {
+		invalidations.incrementAndGet();
+		for ( CompiledQuery key: cache.snapshot().keySet() ) {
+			if ( key.uri.equals( uri ) ) {
+				cache.remove( key );
+			}
+		}
+	}
+	
+	/**
+	 * Evicts every cached result
+	 */
+	public void clear() {
+		invalidations.incrementAndGet();
+		cache.evictAll();
+	}
+	
+	/**
+	 * Evicts every cached result and unregisters the observers.
+	 * The cache may still be used afterwards, and registers new observers as needed.
+	 */
+	public void close() {
+		synchronized ( observers ) {
+			for ( ContentObserver observer: observers.values() ) {
+				resolver.unregisterContentObserver( observer );
+			}
+			observers.clear();
+		}
+		clear();
+	}
+	
+	/**
+	 * @return The number of queries answered from the cache
+	 */
+	public int getHitCount() {
+		return cache.hitCount();
+	}
+	
+	/**
+	 * @return The number of queries sent to the provider
+	 */
+	public int getMissCount() {
+		return cache.missCount();
+	}
+	
+	/**
+	 * @return The number of results evicted to stay within the memory budget
+	 */
+	public int getEvictionCount() {
+		return cache.evictionCount();
+	}
+	
+	/**
+	 * @return The estimated memory used by the cached results, in bytes
+	 */
+	public int getSizeInBytes() {
+		return cache.size();
+	}
+}
@@ -0,0 +1,133 @@
+package com.buzzingandroid.content;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+/**
+ * Runs identical queries only once when they are issued at the same time, e.g. by several
+ * loaders and threads on screen start. Share an instance between {@link QueryBuilder}s
+ * with {@link QueryBuilder#setQueryDeduplicator(QueryDeduplicator)}.<br />
+ * <br />
+ * A query that is identical to one already running (same URI, projection, built selection,
+ * selection arguments and sort order) waits for that query instead of sending its own to the provider.
+ * When the query finishes, its rows are copied, and every waiting caller gets an independent cursor
+ * over the copy. A query that no one joined is returned as is, without copying.
+ * @author Jesper Borgstrup
+ */
+public class QueryDeduplicator {
+	
+	private static final class Flight {
+		final CountDownLatch done = new CountDownLatch( 1 );
+		int joined = 0;
+		CursorSnapshot snapshot;
+		RuntimeException error;
+	}
+	
+	private final HashMap<CompiledQuery, Flight> flights = new HashMap<CompiledQuery, Flight>();
+	private final AtomicInteger deduplicated = new AtomicInteger();
+	
+	/**
+	 * Runs the query, or waits for an identical query that is already running
+	 * @param resolver
+	 * @param key
+	 * @return
+	 */
+	Cursor query( ContentResolver resolver, CompiledQuery key ) {
+		Flight flight;
+		boolean leader;
+		synchronized ( flights ) {
+			flight = flights.get( key );
+			leader = flight == null;
+			if ( leader ) {
+				flight = new Flight();
+				flights.put( key, flight );
+			} else {
+				flight.joined++;
+			}
+		}
+		
+		if ( leader ) {
+			return lead( resolver, key, flight );
+		}
+		deduplicated.incrementAndGet();
+		return join( resolver, key, flight );
+	}
+	
+	/**
+	 * Run the query for everyone waiting for it
+	 */
+	private Cursor lead( ContentResolver resolver, CompiledQuery key, Flight flight ) {
+		Cursor cursor = null;
+		try {
+			cursor = key.query( resolver );
+		} catch ( RuntimeException e ) {
+			flight.error = e;
+		}
+		
+		int joined;
+		synchronized ( flights ) {
+			flights.remove( key );
+			joined = flight.joined;
+		}
+		
+		try {
+			if ( joined > 0 && cursor != null ) {
+				try {
+					flight.snapshot = CursorSnapshot.read( cursor );
+				} finally {
+					cursor.close();
+				}
+				cursor = newCursor( resolver, key, flight.snapshot );
+			}
+		} catch ( RuntimeException e ) {
+			flight.error = e;
+		} finally {
+			flight.done.countDown();
+		}
+		
+		if ( flight.error != null ) {
+			throw flight.error;
+		}
+		return cursor;
+	}
+	
+	/**
+	 * Wait for the query run by another caller
+	 */
+	private Cursor join( ContentResolver resolver, CompiledQuery key, Flight flight ) {
+		boolean interrupted = false;
+		while ( true ) {
+			try {
+				flight.done.await();
+				break;
+			} catch ( InterruptedException e ) {
+				interrupted = true;
+			}
+		}
+		if ( interrupted ) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if ( flight.error != null ) {
+			throw flight.error;
+		}
+		return flight.snapshot == null ? null : newCursor( resolver, key, flight.snapshot );
+	}
+	
+	private static Cursor newCursor( ContentResolver resolver, CompiledQuery key, CursorSnapshot snapshot ) {
+		Cursor cursor = snapshot.newCursor();
+		cursor.setNotificationUri( resolver, key.uri );
+		return cursor;
+	}
+	
+	/**
+	 * @return The number of queries that waited for an identical query instead of querying the provider
+	 */
+	public int getDeduplicatedCount() {
+		return deduplicated.get();
+	}
+}
@@ -0,0 +1,269 @@
+package com.buzzingandroid.content;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.net.Uri;
+
+import com.buzzingandroid.content.QueryBuilder.Operation;
+import com.buzzingandroid.content.QueryBuilder.QueryListener;
+
+/**
+ * Collects histograms of the build time, provider time and row count of QueryBuilder operations,
+ * for every combination of operation, URI and selection fingerprint.<br />
+ * <br />
+ * Recording only looks up the call site and updates atomic counters, without taking locks,
+ * so it may be left enabled in production. Register an instance with
+ * {@link QueryBuilder#addQueryListener(QueryListener)}, and read the slowest call sites with {@link #getStats()}, e.g.<br />
+ * <tt>for ( QueryMetrics.Stats stats: metrics.getStats() ) Log.d( TAG, stats.toString() );</tt><br />
+ * <br />
+ * At most {@link #MAX_CALL_SITES} combinations are kept apart. Operations beyond that are
+ * collected together, with a null URI and fingerprint.
+ * @author Jesper Borgstrup
+ */
+public class QueryMetrics implements QueryListener {
+	
+	public static final int MAX_CALL_SITES = 256;
+	
+	/**
+	 * A histogram of values with power-of-two buckets: bucket 0 counts the value 0,
+	 * and bucket <tt>i</tt> counts the values from <tt>2^(i-1)</tt> to <tt>2^i - 1</tt>.
+	 */
+	public static final class Histogram {
+		private static final int BUCKETS = 64;
+		
+		private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+		
+		Histogram() {}
+		
+		/**
+		 * @param value A value of at least 0. Negative values are recorded as 0.
+		 */
+		void record( long value ) {
+			if ( value < 0 ) {
+				value = 0;
+			}
+			buckets.incrementAndGet( BUCKETS - Long.numberOfLeadingZeros( value ) );
+			count.incrementAndGet();
+			sum.addAndGet( value );
+			long previous = max.get();
+			while ( value > previous && !max.compareAndSet( previous, value ) ) {
+				previous = max.get();
+			}
+		}
+		
+		public long getCount() {
+			return count.get();
+		}
+		
+		public long getSum() {
+			return sum.get();
+		}
+		
+		public long getMax() {
+			return max.get();
+		}
+		
+		/**
+		 * @return The mean of the values, or 0 if there are none
+		 */
+		public long getMean() {
+			long n = count.get();
+			return n == 0 ? 0 : sum.get() / n;
+		}
+		
+		/**
+		 * @param fraction The fraction of values that are at most the result, e.g. 0.99
+		 * @return An upper bound of the value at the fraction, within a factor of two, or 0 if there are no values
+		 */
+		public long getPercentile( double fraction ) {
+			long n = count.get();
+			if ( n == 0 ) {
+				return 0;
+			}
+			long rank = (long) Math.ceil( fraction * n );
+			long seen = 0;
+			for ( int i = 0; i < BUCKETS; i++ ) {
+				seen += buckets.get( i );
+				if ( seen >= rank ) {
+					return Math.min( i == 0 ? 0 : ( 1L << i ) - 1, max.get() );
+				}
+			}
+			return max.get();
+		}
+		
+		/**
+		 * @param bucket
+		 * @return The number of values recorded in the bucket
+		 */
+		public long getBucketCount( int bucket ) {
+			return buckets.get( bucket );
+		}
+		
+		@Override
+		public String toString() {
+			return "n=" + getCount() + " mean=" + getMean() + " p50=" + getPercentile( 0.5 )
+					+ " p99=" + getPercentile( 0.99 ) + " max=" + getMax();
+		}
+	}
+	
+	/**
+	 * The histograms of one call site. Times are in microseconds.
+	 */
+	public static final class Stats {
+		private final Operation operation;
+		private final Uri uri;
+		private final String fingerprint;
+		
+		private final Histogram buildMicros = new Histogram();
+		private final Histogram providerMicros = new Histogram();
+		private final Histogram rows = new Histogram();
+		
+		Stats( Operation operation, Uri uri, String fingerprint ) {
+			this.operation = operation;
+			this.uri = uri;
+			this.fingerprint = fingerprint;
+		}
+		
+		public Operation getOperation() {
+			return operation;
+		}
+		
+		/**
+		 * @return The URI, or null for the operations beyond {@link QueryMetrics#MAX_CALL_SITES}
+		 */
+		public Uri getUri() {
+			return uri;
+		}
+		
+		/**
+		 * @return The selection fingerprint, or null for the operations beyond {@link QueryMetrics#MAX_CALL_SITES}
+		 */
+		public String getFingerprint() {
+			return fingerprint;
+		}
+		
+		public Histogram getBuildMicros() {
+			return buildMicros;
+		}
+		
+		public Histogram getProviderMicros() {
+			return providerMicros;
+		}
+		
+		/**
+		 * @return The rows returned, updated or deleted. Queries that returned null are not counted.
+		 */
+		public Histogram getRows() {
+			return rows;
+		}
+		
+		@Override
+		public String toString() {
+			return operation + " " + uri + " WHERE " + fingerprint + "\n  build: " + buildMicros
+					+ "\n  provider: " + providerMicros + "\n  rows: " + rows;
+		}
+	}
+	
+	/**
+	 * The key of a call site. The fingerprint is usually the same string instance for every call from the same QueryBuilder,
+	 * with a cached hash code, so looking up a call site doesn't build or hash any strings.
+	 */
+	private static final class CallSite {
+		final Operation operation;
+		final Uri uri;
+		final String fingerprint;
+		private final int hashCode;
+		
+		CallSite( Operation operation, Uri uri, String fingerprint ) {
+			this.operation = operation;
+			this.uri = uri;
+			this.fingerprint = fingerprint;
+			this.hashCode = ( 31 * operation.hashCode() + uri.hashCode() ) * 31 + fingerprint.hashCode();
+		}
+		
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+		
+		@Override
+		public boolean equals( Object o ) {
+			if ( !( o instanceof CallSite ) ) {
+				return false;
+			}
+			CallSite other = (CallSite) o;
+			return hashCode == other.hashCode
+					&& operation == other.operation
+					&& uri.equals( other.uri )
+					&& fingerprint.equals( other.fingerprint );
+		}
+	}
+	
+	private final ConcurrentHashMap<CallSite, Stats> stats = new ConcurrentHashMap<CallSite, Stats>();
+	private final ConcurrentHashMap<Operation, Stats> overflow = new ConcurrentHashMap<Operation, Stats>();
+	
+	public void operationCompleted( Operation operation, Uri uri, String fingerprint, long buildNanos, long providerNanos, int rows ) {
+		Stats site = getStats( operation, uri, fingerprint );
+		site.buildMicros.record( buildNanos / 1000 );
+		site.providerMicros.record( providerNanos / 1000 );
+		if ( rows >= 0 ) {
+			site.rows.record( rows );
+		}
+	}
+	
+	private Stats getStats( Operation operation, Uri uri, String fingerprint ) {
+		final CallSite key = new CallSite( operation, uri, fingerprint );
+		Stats site = stats.get( key );
+		if ( site != null ) {
+			return site;
+		}
+		if ( stats.size() < MAX_CALL_SITES ) {
+			site = new Stats( operation, uri, fingerprint );
+			Stats existing = stats.putIfAbsent( key, site );
+			return existing != null ? existing : site;
+		}
+		
+		site = overflow.get( operation );
+		if ( site == null ) {
+			Stats created = new Stats( operation, null, null );
+			site = overflow.putIfAbsent( operation, created );
+			if ( site == null ) {
+				site = created;
+			}
+		}
+		return site;
+	}
+	
+	/**
+	 * @return The statistics of every call site, with the highest total provider time first
+	 */
+	public List<Stats> getStats() {
+		ArrayList<Stats> list = new ArrayList<Stats>( stats.values() );
+		list.addAll( overflow.values() );
+		Collections.sort( list, new Comparator<Stats>() {
+			public int compare( Stats a, Stats b ) {
+				long x = a.providerMicros.getSum();
+				long y = b.providerMicros.getSum();
+				return x > y ? -1 : ( x == y ? 0 : 1 );
+			}
+		} );
+		return list;
+	}
+	
+	/**
+	 * Discards everything recorded so far
+	 */
+	public void reset() {
+		stats.clear();
+		overflow.clear();
+	}
+}
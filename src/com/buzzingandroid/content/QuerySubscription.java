@@ -0,0 +1,197 @@
+package com.buzzingandroid.content;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.buzzingandroid.content.AsyncQueryExecutor.Priority;
+
+/**
+ * Keeps the result of a {@link QueryBuilder} query up to date, by querying again in the
+ * background whenever a change is notified on the URI. Create one with
+ * {@link QueryBuilder#observe(Context, Uri, Observer)}.<br />
+ * <br />
+ * Change notifications are coalesced: the query runs at most once per minimum interval,
+ * and never while it is already running, so a storm of notifications during a batch write causes
+ * a single query after it. A result equal to the one delivered before is not delivered again.<br />
+ * <br />
+ * Results are delivered on the thread that created the subscription. Call {@link #unsubscribe()}
+ * when the results are no longer needed, e.g. in <tt>onStop()</tt>.
+ * @author Jesper Borgstrup
+ */
+public class QuerySubscription {
+	
+	public static final long DEFAULT_MIN_INTERVAL_MILLIS = 500;
+	
+	public interface Observer {
+		/**
+		 * Called with the first result, and with every changed result after that.<br />
+		 * The observer is responsible for closing the cursor, e.g. by swapping it into a <tt>CursorAdapter</tt>.
+		 * @param cursor The result, or null if the provider returned null
+		 */
+		public void queryChanged( Cursor cursor );
+	}
+	
+	private final Context context;
+	private final Uri uri;
+	private final QueryBuilder builder;
+	private final Observer observer;
+	private final Handler handler;
+	private final ContentObserver contentObserver;
+	
+	private long minIntervalMillis = DEFAULT_MIN_INTERVAL_MILLIS;
+	
+	private boolean subscribed = true;
+	private boolean scheduled = false;
+	private boolean changedWhileRunning = false;
+	private CancellationToken running;
+	private long lastQueryStart;
+	private Long lastHash;
+	
+	private final Runnable requery = new Runnable() {
+		public void run() {
+			scheduled = false;
+			query();
+		}
+	};
+	
+	/**
+	 * Must be created on a thread with a Looper
+	 * @param context
+	 * @param uri
+	 * @param builder The builder to query. It is copied, so later changes to it are not used.
+	 * @param observer
+	 */
+	QuerySubscription( Context context, Uri uri, QueryBuilder builder, Observer observer ) {
+		Looper looper = Looper.myLooper();
+		if ( looper == null ) {
+			throw new IllegalStateException( "QuerySubscription must be created on a thread with a Looper" );
+		}
+		this.context = context.getApplicationContext();
+		this.uri = uri;
+		// A cached result could be older than the change that triggered the query
+		this.builder = new QueryBuilder( builder ).setQueryCache( null );
+		this.observer = observer;
+		this.handler = new Handler( looper );
+		this.contentObserver = new ContentObserver( handler ) {
+			@Override
+			public boolean deliverSelfNotifications() {
+				return true;
+			}
+			
+			@Override
+			public void onChange( boolean selfChange ) {
+				scheduleQuery();
+			}
+		};
+		
+		this.context.getContentResolver().registerContentObserver( uri, true, contentObserver );
+		query();
+	}
+	
+	/**
+	 * Sets the minimum time between the start of two queries. The default is {@link #DEFAULT_MIN_INTERVAL_MILLIS}.
+	 * @param minIntervalMillis
+	 * @return The QuerySubscription instance for chaining method calls
+	 */
+	public QuerySubscription setMinIntervalMillis( long minIntervalMillis ) {
+		this.minIntervalMillis = minIntervalMillis;
+		return this;
+	}
+	
+	/**
+	 * Stops observing changes. Any running query is cancelled, and nothing more is delivered.
+	 * Must be called on the thread that created the subscription.
+	 */
+	public void unsubscribe() {
+		if ( !subscribed ) {
+			return;
+		}
+		subscribed = false;
+		context.getContentResolver().unregisterContentObserver( contentObserver );
+		handler.removeCallbacks( requery );
+		if ( running != null ) {
+			running.cancel();
+			running = null;
+		}
+	}
+	
+	public boolean isSubscribed() {
+		return subscribed;
+	}
+	
+	/**
+	 * Schedule a query after a change, respecting the minimum interval
+	 */
+	private void scheduleQuery() {
+		if ( !subscribed || scheduled ) {
+			return;
+		}
+		if ( running != null ) {
+			// Query again when the running query is delivered
+			changedWhileRunning = true;
+			return;
+		}
+		scheduled = true;
+		long delay = lastQueryStart + minIntervalMillis - SystemClock.uptimeMillis();
+		handler.postDelayed( requery, Math.max( 0, delay ) );
+	}
+	
+	private void query() {
+		if ( !subscribed ) {
+			return;
+		}
+		lastQueryStart = SystemClock.uptimeMillis();
+		changedWhileRunning = false;
+		running = builder.getAsyncQueryExecutor().submit( Priority.NORMAL, new AsyncQueryExecutor.Task<Result>() {
+			@Override
+			protected Result run() {
+				Cursor cursor = builder.query( context, uri );
+				return new Result( cursor, cursor == null ? 0 : CursorSnapshot.contentHash( cursor ) );
+			}
+			
+			@Override
+			protected void deliver( Result result ) {
+				running = null;
+				// A null result means the query failed, so there is nothing new to deliver
+				if ( result != null ) {
+					if ( lastHash != null && result.cursor != null && lastHash.longValue() == result.hash ) {
+						result.cursor.close();
+					} else {
+						lastHash = result.cursor == null ? null : result.hash;
+						if ( result.cursor != null ) {
+							result.cursor.moveToPosition( -1 );
+						}
+						observer.queryChanged( result.cursor );
+					}
+				}
+				
+				if ( changedWhileRunning ) {
+					changedWhileRunning = false;
+					scheduleQuery();
+				}
+			}
+			
+			@Override
+			protected void discard( Result result ) {
+				if ( result != null && result.cursor != null ) {
+					result.cursor.close();
+				}
+			}
+		} );
+	}
+	
+	private static class Result {
+		final Cursor cursor;
+		final long hash;
+		
+		Result( Cursor cursor, long hash ) {
+			this.cursor = cursor;
+			this.hash = hash;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.buzzingandroid.content;
+
+import java.util.ArrayList;
+
+import android.database.Cursor;
+
+/**
+ * Reads rows of a query result into objects of a model class.<br />
+ * <br />
+ * Mappers are normally generated at compile time for classes annotated with {@link MappedRow},
+ * but may be written by hand. A mapper supplies the projection it reads, see
+ * {@link QueryBuilder#select(RowMapper)}, and looks up the column indexes once per cursor
+ * instead of once per row. Mappers hold no state, so one instance may be shared between threads.
+ * @author Jesper Borgstrup
+ * @param <T> The model class
+ */
+public abstract class RowMapper<T> {
+	
+	private final String[] projection;
+	
+	/**
+	 * @param projection The columns read by {@link #map(Cursor, int[])}, in the order of its column indexes
+	 */
+	protected RowMapper( String... projection ) {
+		this.projection = projection;
+	}
+	
+	/**
+	 * @return The columns this mapper reads
+	 */
+	public final String[] getProjection() {
+		return projection.clone();
+	}
+	
+	/**
+	 * Looks up the indexes of the projection columns in the cursor. Do this once per cursor,
+	 * and pass the result to {@link #map(Cursor, int[])} for every row.
+	 * @param cursor
+	 * @return The index in the cursor of every projection column
+	 * @throws IllegalArgumentException if the cursor is missing a column
+	 */
+	public final int[] resolveColumns( Cursor cursor ) {
+		int[] columns = new int[ projection.length ];
+		for ( int i = 0; i < projection.length; i++ ) {
+			columns[i] = cursor.getColumnIndexOrThrow( projection[i] );
+		}
+		return columns;
+	}
+	
+	/**
+	 * Reads the current row of the cursor
+	 * @param cursor
+	 * @param columns The column indexes from {@link #resolveColumns(Cursor)}
+	 * @return
+	 */
+	public abstract T map( Cursor cursor, int[] columns );
+	
+	/**
+	 * Reads every row of the cursor. The cursor position is changed, and the cursor is not closed.
+	 * @param cursor
+	 * @return
+	 */
+	public final ArrayList<T> mapAll( Cursor cursor ) {
+		final int[] columns = resolveColumns( cursor );
+		ArrayList<T> rows = new ArrayList<T>( cursor.getCount() );
+		cursor.moveToPosition( -1 );
+		while ( cursor.moveToNext() ) {
+			rows.add( map( cursor, columns ) );
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,141 @@
+package com.buzzingandroid.content;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+import com.buzzingandroid.content.QueryBuilder.RowConsumer;
+
+/**
+ * Reads a query result in keyset pages sized to fit in one cursor window, handing each
+ * row to a {@link RowConsumer}. Only one page is open at a time.<br />
+ * <br />
+ * The page size starts small, and is then adapted to the measured size of the rows,
+ * so that pages of narrow rows are large and pages of wide rows are small.
+ * @author Jesper Borgstrup
+ */
+final class RowStream {
+	
+	/**
+	 * The number of bytes each page should take up in its cursor window. Cursor windows
+	 * are 2 MB, so this leaves room for rows larger than the estimate.
+	 */
+	static final int TARGET_PAGE_BYTES = 1024 * 1024;
+	static final int INITIAL_PAGE_SIZE = 64;
+	static final int MAX_PAGE_SIZE = 4096;
+	
+	/*
+	 * Rough size of a row and a value in a cursor window, besides the data of the value
+	 */
+	private static final int ROW_OVERHEAD = 16;
+	private static final int FIELD_OVERHEAD = 12;
+	
+	/**
+	 * The number of rows measured in each page
+	 */
+	private static final int SAMPLE_ROWS = 16;
+	
+	private final QueryBuilder builder;
+	private final Context context;
+	private final Uri uri;
+	private final String sortColumn;
+	private final boolean descending;
+	
+	private long sampledRows;
+	private long sampledBytes;
+	
+	RowStream( QueryBuilder builder, Context context, Uri uri, String sortColumn, boolean descending ) {
+		this.builder = builder;
+		this.context = context;
+		this.uri = uri;
+		this.sortColumn = sortColumn;
+		this.descending = descending;
+	}
+	
+	/**
+	 * Hands every row to the consumer, until it returns false or there are no more rows
+	 * @param consumer
+	 * @return The number of rows handed to the consumer
+	 */
+	int run( RowConsumer consumer ) {
+		int rows = 0;
+		int pageSize = INITIAL_PAGE_SIZE;
+		PageToken token = null;
+		while ( true ) {
+			Cursor page = builder.queryPage( context, uri, sortColumn, descending, token, pageSize );
+			if ( page == null ) {
+				return rows;
+			}
+			try {
+				final int count = page.getCount();
+				page.moveToPosition( -1 );
+				while ( page.moveToNext() ) {
+					rows++;
+					if ( !consumer.consumeRow( page ) ) {
+						return rows;
+					}
+				}
+				if ( count < pageSize ) {
+					return rows;
+				}
+				token = PageToken.afterLastRow( page, sortColumn );
+				pageSize = nextPageSize( page );
+			} finally {
+				page.close();
+			}
+		}
+	}
+	
+	/**
+	 * Measures some of the rows of a page, and estimates how many rows of that size fit in the target size
+	 * @param page
+	 * @return
+	 */
+	private int nextPageSize( Cursor page ) {
+		final int count = page.getCount();
+		final int step = Math.max( 1, count / SAMPLE_ROWS );
+		for ( int position = 0; position < count; position += step ) {
+			page.moveToPosition( position );
+			sampledBytes += estimateRowBytes( page );
+			sampledRows++;
+		}
+		long averageRowBytes = Math.max( 1, sampledBytes / sampledRows );
+		return (int) Math.max( 1, Math.min( MAX_PAGE_SIZE, TARGET_PAGE_BYTES / averageRowBytes ) );
+	}
+	
+	/**
+	 * @param cursor
+	 * @return The estimated number of bytes the current row takes up in a cursor window
+	 */
+	private static int estimateRowBytes( Cursor cursor ) {
+		final boolean typed = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+		final int columnCount = cursor.getColumnCount();
+		int size = ROW_OVERHEAD;
+		for ( int column = 0; column < columnCount; column++ ) {
+			size += FIELD_OVERHEAD + ( typed ? estimateTypedValueBytes( cursor, column ) : estimateTextBytes( cursor.getString( column ) ) );
+		}
+		return size;
+	}
+	
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	private static int estimateTypedValueBytes( Cursor cursor, int column ) {
+		switch ( cursor.getType( column ) ) {
+		case Cursor.FIELD_TYPE_STRING:
+			return estimateTextBytes( cursor.getString( column ) );
+		case Cursor.FIELD_TYPE_BLOB:
+			return cursor.getBlob( column ).length;
+		default:
+			// Numbers and null are stored in the field itself
+			return 0;
+		}
+	}
+	
+	/**
+	 * Text is stored as UTF-8. Assume two bytes per character to cover non-ASCII text.
+	 */
+	private static int estimateTextBytes( String text ) {
+		return text == null ? 0 : 2 * text.length() + 1;
+	}
+}
@@ -0,0 +1,318 @@
+package com.buzzingandroid.content;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.buzzingandroid.content.QueryBuilder.SearchMode;
+
+/**
+ * Remembers the latest result of a free-text search, so that a search that can only
+ * match a subset of it (e.g. when "jo" is extended to "joh") is answered by filtering the
+ * remembered rows in memory instead of querying the provider again.<br />
+ * <br />
+ * Only {@link SearchMode#LIKE} and {@link SearchMode#PREFIX_GLOB} searches are refined, as the
+ * result of a {@link SearchMode#PREFIX_RANGE} search depends on the collation of the search columns,
+ * and the result of a {@link SearchMode#FULL_TEXT} search on the FTS tokenizer.<br />
+ * <br />
+ * A <tt>ContentObserver</tt> is registered for the URI of the remembered result, which is forgotten as soon as
+ * a change is notified on the URI, like the results of a {@link QueryCache}. In case the provider doesn't
+ * notify its changes, a result is also only refined for {@link #MAX_AGE_MILLIS} after it was queried.
+ * @author Jesper Borgstrup
+ */
+final class SearchRefinement {
+	
+	static final long MAX_AGE_MILLIS = 10000;
+	
+	private final int maxRows;
+	
+	/*
+	 * Everything but the tokens must be equal for a search to refine the remembered one
+	 */
+	private Uri uri;
+	private String[] projection;
+	private String selection;
+	private String[] selectionArgs;
+	private String sortOrder;
+	private String[] searchColumns;
+	private SearchMode searchMode;
+	
+	private String[] tokens;
+	private int[] searchColumnIndexes;
+	private CursorSnapshot snapshot;
+	private long queriedAt;
+	
+	/*
+	 * The observer of the URI of the latest search, and the number of changes notified to any observer,
+	 * which tells whether the data changed while a search was queried
+	 */
+	private ChangeObserver observer;
+	private int changes;
+	
+	/**
+	 * @param maxRows The maximum number of rows in a result to remember
+	 */
+	SearchRefinement( int maxRows ) {
+		this.maxRows = maxRows;
+	}
+	
+	/**
+	 * Answers the search by filtering the remembered result, if possible
+	 * @return A cursor with the rows matching the search, or null if the search must be queried
+	 */
+	synchronized Cursor refine( Uri uri, String[] projection, CharSequence selection, List<String> selectionArgs, String sortOrder,
+								String[] searchColumns, SearchMode searchMode, String[] tokens ) {
+		if ( snapshot == null
+				|| SystemClock.uptimeMillis() - queriedAt > MAX_AGE_MILLIS
+				|| searchMode != this.searchMode
+				|| !uri.equals( this.uri )
+				|| !equals( projection, this.projection )
+				|| !this.selection.contentEquals( selection )
+				|| !equals( selectionArgs, this.selectionArgs )
+				|| !equals( sortOrder, this.sortOrder )
+				|| !equals( searchColumns, this.searchColumns )
+				|| !isSupported( searchMode, tokens )
+				|| !narrows( this.tokens, tokens ) ) {
+			return null;
+		}
+		
+		int[] matches = new int[ snapshot.getCount() ];
+		int count = 0;
+		for ( int row = 0; row < snapshot.getCount(); row++ ) {
+			if ( matches( row, tokens ) ) {
+				matches[ count++ ] = row;
+			}
+		}
+		
+		// Remember the smaller result, so the next keystroke filters less
+		this.snapshot = snapshot.select( matches, count );
+		this.tokens = tokens;
+		return snapshot.newCursor();
+	}
+	
+	/**
+	 * Starts observing the URI of a search, which must be called before the search is queried
+	 * @param resolver
+	 * @param uri
+	 * @return The generation to pass to {@link #remember}
+	 */
+	synchronized int observe( ContentResolver resolver, Uri uri ) {
+		if ( observer == null || !observer.uri.equals( uri ) ) {
+			unobserve();
+			observer = new ChangeObserver( this, resolver, uri );
+			resolver.registerContentObserver( uri, true, observer );
+		}
+		return changes;
+	}
+	
+	/**
+	 * Remembers the result of a search that was queried, if it is small enough and its data
+	 * didn't change while it was queried.
+	 * @param generation The generation returned by {@link #observe(ContentResolver, Uri)} before the query
+	 * @param cursor The queried result
+	 * @return A cursor with the same rows. It is either the cursor passed in, or a new cursor
+	 * over a copy of its rows, in which case the cursor passed in is closed.
+	 */
+	synchronized Cursor remember( Uri uri, String[] projection, CharSequence selection, List<String> selectionArgs, String sortOrder,
+								  String[] searchColumns, SearchMode searchMode, String[] tokens, int generation, Cursor cursor ) {
+		this.snapshot = null;
+		
+		if ( cursor == null
+				|| generation != changes
+				|| observer == null
+				|| !observer.uri.equals( uri )
+				|| !isSupported( searchMode, tokens )
+				|| sortOrder != null && sortOrder.toUpperCase( Locale.US ).contains( "LIMIT" )
+				|| cursor.getCount() > maxRows ) {
+			return cursor;
+		}
+		
+		int[] searchColumnIndexes = new int[ searchColumns.length ];
+		for ( int i = 0; i < searchColumns.length; i++ ) {
+			searchColumnIndexes[i] = cursor.getColumnIndex( searchColumns[i] );
+			if ( searchColumnIndexes[i] == -1 ) {
+				// Can't filter on a column that isn't in the result
+				return cursor;
+			}
+		}
+		
+		this.uri = uri;
+		this.projection = projection;
+		this.selection = selection.toString();
+		this.selectionArgs = selectionArgs.toArray( new String[ selectionArgs.size() ] );
+		this.sortOrder = sortOrder;
+		this.searchColumns = searchColumns;
+		this.searchMode = searchMode;
+		this.tokens = tokens;
+		this.searchColumnIndexes = searchColumnIndexes;
+		this.snapshot = CursorSnapshot.read( cursor );
+		this.queriedAt = SystemClock.uptimeMillis();
+		cursor.close();
+		return snapshot.newCursor();
+	}
+	
+	/**
+	 * Forget the remembered result
+	 */
+	synchronized void clear() {
+		snapshot = null;
+	}
+	
+	/**
+	 * Forget the remembered result because its data changed, and stop observing until the next search
+	 * @param changed The observer that was notified
+	 */
+	private synchronized void onChange( ChangeObserver changed ) {
+		changes++;
+		if ( changed == observer ) {
+			snapshot = null;
+			unobserve();
+		}
+	}
+	
+	private void unobserve() {
+		if ( observer != null ) {
+			observer.resolver.unregisterContentObserver( observer );
+			observer = null;
+		}
+	}
+	
+	/**
+	 * Only holds a weak reference to the refinement, so that a refinement whose QueryBuilder is gone
+	 * isn't kept in memory by the registered observer. Such an observer unregisters itself on the next change.
+	 */
+	private static final class ChangeObserver extends ContentObserver {
+		final WeakReference<SearchRefinement> refinement;
+		final ContentResolver resolver;
+		final Uri uri;
+		
+		ChangeObserver( SearchRefinement refinement, ContentResolver resolver, Uri uri ) {
+			super( null );
+			this.refinement = new WeakReference<SearchRefinement>( refinement );
+			this.resolver = resolver;
+			this.uri = uri;
+		}
+		
+		@Override
+		public void onChange( boolean selfChange ) {
+			SearchRefinement refinement = this.refinement.get();
+			if ( refinement != null ) {
+				refinement.onChange( this );
+			} else {
+				resolver.unregisterContentObserver( this );
+			}
+		}
+	}
+	
+	/**
+	 * Whether the search can be filtered in memory with the same result as the provider would give
+	 */
+	private static boolean isSupported( SearchMode searchMode, String[] tokens ) {
+		switch ( searchMode ) {
+		case LIKE:
+			// The LIKE wildcards in a token are not escaped
+			for ( String token: tokens ) {
+				if ( token.indexOf( '%' ) != -1 || token.indexOf( '_' ) != -1 ) {
+					return false;
+				}
+			}
+			return true;
+		case PREFIX_GLOB:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Whether every row matching the new tokens also matches the old tokens. That is the case
+	 * if each old token is contained in (or for prefix search, a prefix of) one of the new tokens.
+	 */
+	private boolean narrows( String[] oldTokens, String[] newTokens ) {
+		for ( String oldToken: oldTokens ) {
+			boolean covered = false;
+			for ( int i = 0; i < newTokens.length && !covered; i++ ) {
+				covered = tokenMatches( newTokens[i], oldToken );
+			}
+			if ( !covered ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Whether the remembered row matches all the tokens
+	 */
+	private boolean matches( int row, String[] tokens ) {
+		for ( String token: tokens ) {
+			boolean found = false;
+			for ( int i = 0; i < searchColumnIndexes.length && !found; i++ ) {
+				String value = snapshot.getString( row, searchColumnIndexes[i] );
+				found = value != null && tokenMatches( value, token );
+			}
+			if ( !found ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Whether the value matches the token like SQLite would in the current search mode
+	 */
+	private boolean tokenMatches( String value, String token ) {
+		if ( searchMode == SearchMode.PREFIX_GLOB ) {
+			return value.startsWith( token );
+		}
+		return containsIgnoreAsciiCase( value, token );
+	}
+	
+	/**
+	 * Like SQLite's LIKE operator, only ASCII letters are case-insensitive
+	 */
+	private static boolean containsIgnoreAsciiCase( String value, String token ) {
+		final int last = value.length() - token.length();
+		for ( int start = 0; start <= last; start++ ) {
+			int i = 0;
+			while ( i < token.length() && toLowerAscii( value.charAt( start + i ) ) == toLowerAscii( token.charAt( i ) ) ) {
+				i++;
+			}
+			if ( i == token.length() ) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static char toLowerAscii( char c ) {
+		return c >= 'A' && c <= 'Z' ? (char) ( c + ( 'a' - 'A' ) ) : c;
+	}
+	
+	private static boolean equals( Object a, Object b ) {
+		return a == null ? b == null : a.equals( b );
+	}
+	
+	private static boolean equals( String[] a, String[] b ) {
+		return Arrays.equals( a, b );
+	}
+	
+	private static boolean equals( List<String> list, String[] array ) {
+		if ( list.size() != array.length ) {
+			return false;
+		}
+		for ( int i = 0; i < array.length; i++ ) {
+			if ( !equals( list.get( i ), array[i] ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,275 @@
+package com.buzzingandroid.content;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import com.buzzingandroid.content.QueryBuilder.Operation;
+import com.buzzingandroid.content.QueryBuilder.QueryListener;
+
+/**
+ * Writes every QueryBuilder operation slower than a threshold to a log file, e.g. to collect
+ * slow searches and huge IN sets from users' devices.<br />
+ * <br />
+ * Every record is a line with the time, operation, total, build and provider time in milliseconds,
+ * row count, calling thread, URI and selection fingerprint, separated by tabs. The fingerprint has every
+ * value replaced by a question mark, so no selection arguments or literal values are written.
+ * Each call site (operation, URI and fingerprint) is only written once per sample interval, with the number
+ * of slow calls that were skipped since its last record.<br />
+ * <br />
+ * The records are written on a background thread with buffered appends, so the calling thread never
+ * waits for the disk. When the file grows beyond half of the size limit, it is renamed to
+ * <tt>[file].1</tt>, replacing the previous one, and a new file is started. Records are dropped
+ * if they arrive faster than they can be written.<br />
+ * <br />
+ * Register the log with {@link QueryBuilder#addQueryListener(QueryListener)}, e.g.<br />
+ * <tt>QueryBuilder.addQueryListener( new SlowQueryLog( new File( context.getFilesDir(), "slow-queries.log" ) ) );</tt>
+ * @author Jesper Borgstrup
+ */
+public class SlowQueryLog implements QueryListener {
+	
+	public static final long DEFAULT_THRESHOLD_MILLIS = 100;
+	public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+	public static final long DEFAULT_SAMPLE_INTERVAL_MILLIS = 10 * 1000;
+	
+	private static final String TAG = "SlowQueryLog";
+	private static final int MAX_PENDING_RECORDS = 256;
+	private static final int MAX_TRACKED_CALL_SITES = 1024;
+	
+	private final File file;
+	private final File previousFile;
+	private final long thresholdNanos;
+	private final int maxBytes;
+	private volatile long sampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos( DEFAULT_SAMPLE_INTERVAL_MILLIS );
+	
+	/*
+	 * The last time a record was written for each call site, and the slow calls skipped since
+	 */
+	private static final class Sample {
+		long lastWritten;
+		int skipped;
+	}
+	
+	private final ConcurrentHashMap<String, Sample> samples = new ConcurrentHashMap<String, Sample>();
+	
+	private final ThreadPoolExecutor writer;
+	
+	/*
+	 * Only used on the writer thread
+	 */
+	private OutputStream out;
+	private long fileLength;
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss.SSS", Locale.US );
+	
+	/**
+	 * Logs operations slower than {@link #DEFAULT_THRESHOLD_MILLIS} to the file,
+	 * using at most {@link #DEFAULT_MAX_BYTES} for the file and its previous version
+	 * @param file
+	 */
+	public SlowQueryLog( File file ) {
+		this( file, DEFAULT_THRESHOLD_MILLIS, DEFAULT_MAX_BYTES );
+	}
+	
+	/**
+	 * @param file
+	 * @param thresholdMillis Operations that take longer than this are logged
+	 * @param maxBytes The maximum size of the file and its previous version together
+	 */
+	public SlowQueryLog( File file, long thresholdMillis, int maxBytes ) {
+		this.file = file;
+		this.previousFile = new File( file.getPath() + ".1" );
+		this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos( thresholdMillis );
+		this.maxBytes = maxBytes;
+		
+		ThreadFactory threadFactory = new ThreadFactory() {
+			public Thread newThread( final Runnable r ) {
+				Thread thread = new Thread( new Runnable() {
+					public void run() {
+						Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+						r.run();
+					}
+				}, TAG );
+				thread.setDaemon( true );
+				return thread;
+			}
+		};
+		this.writer = new ThreadPoolExecutor( 1, 1, 0, TimeUnit.MILLISECONDS,
+											  new ArrayBlockingQueue<Runnable>( MAX_PENDING_RECORDS ), threadFactory,
+											  new ThreadPoolExecutor.DiscardPolicy() ) {
+			@Override
+			protected void terminated() {
+				closeQuietly();
+			}
+		};
+	}
+	
+	/**
+	 * Sets how often a record is written for the same call site. Use 0 to write every slow call.
+	 * The default is {@link #DEFAULT_SAMPLE_INTERVAL_MILLIS}.
+	 * @param intervalMillis
+	 * @return The SlowQueryLog instance for chaining method calls
+	 */
+	public SlowQueryLog setSampleIntervalMillis( long intervalMillis ) {
+		this.sampleIntervalNanos = TimeUnit.MILLISECONDS.toNanos( intervalMillis );
+		return this;
+	}
+	
+	public void operationCompleted( final Operation operation, final Uri uri, final String fingerprint,
+									final long buildNanos, final long providerNanos, final int rows ) {
+		if ( buildNanos + providerNanos < thresholdNanos ) {
+			return;
+		}
+		final int skipped = sample( operation.name() + ' ' + uri + ' ' + fingerprint );
+		if ( skipped == -1 ) {
+			return;
+		}
+		
+		final long time = System.currentTimeMillis();
+		final String thread = Thread.currentThread().getName();
+		writer.execute( new Runnable() {
+			public void run() {
+				StringBuilder sb = new StringBuilder();
+				sb.append( dateFormat.format( new Date( time ) ) ).append( '\t' );
+				sb.append( operation ).append( '\t' );
+				appendMillis( sb, buildNanos + providerNanos ).append( '\t' );
+				appendMillis( sb, buildNanos ).append( '\t' );
+				appendMillis( sb, providerNanos ).append( '\t' );
+				sb.append( rows ).append( '\t' );
+				sb.append( thread ).append( '\t' );
+				sb.append( uri ).append( '\t' );
+				sb.append( fingerprint );
+				if ( skipped > 0 ) {
+					sb.append( "\t(" ).append( skipped ).append( " more)" );
+				}
+				write( sb.toString().replace( '\n', ' ' ) + '\n' );
+			}
+		} );
+	}
+	
+	/**
+	 * @param callSite
+	 * @return The number of slow calls skipped since the last record for the call site,
+	 * or -1 if this call should be skipped too
+	 */
+	private int sample( String callSite ) {
+		final long now = System.nanoTime();
+		Sample sample = samples.get( callSite );
+		if ( sample == null ) {
+			if ( samples.size() >= MAX_TRACKED_CALL_SITES ) {
+				samples.clear();
+			}
+			sample = new Sample();
+			sample.lastWritten = now;
+			Sample existing = samples.putIfAbsent( callSite, sample );
+			if ( existing == null ) {
+				return 0;
+			}
+			sample = existing;
+		}
+		synchronized ( sample ) {
+			if ( now - sample.lastWritten < sampleIntervalNanos ) {
+				sample.skipped++;
+				return -1;
+			}
+			int skipped = sample.skipped;
+			sample.lastWritten = now;
+			sample.skipped = 0;
+			return skipped;
+		}
+	}
+	
+	private static StringBuilder appendMillis( StringBuilder sb, long nanos ) {
+		long micros = nanos / 1000;
+		sb.append( micros / 1000 ).append( '.' );
+		long fraction = micros % 1000;
+		if ( fraction < 100 ) {
+			sb.append( fraction < 10 ? "00" : "0" );
+		}
+		return sb.append( fraction );
+	}
+	
+	/**
+	 * Append a record to the file, starting a new file first if it would grow too large.
+	 * Called on the writer thread.
+	 * @param record
+	 */
+	private void write( String record ) {
+		try {
+			byte[] bytes = record.getBytes( "UTF-8" );
+			if ( out != null && fileLength + bytes.length > maxBytes / 2 ) {
+				out.close();
+				out = null;
+				previousFile.delete();
+				if ( !file.renameTo( previousFile ) ) {
+					file.delete();
+				}
+			}
+			if ( out == null ) {
+				File parent = file.getParentFile();
+				if ( parent != null ) {
+					parent.mkdirs();
+				}
+				out = new BufferedOutputStream( new FileOutputStream( file, true ) );
+				fileLength = file.length();
+			}
+			out.write( bytes );
+			fileLength += bytes.length;
+			
+			// Flush once the records waiting to be written have been written
+			if ( writer.getQueue().isEmpty() ) {
+				out.flush();
+			}
+		} catch ( UnsupportedEncodingException e ) {
+			throw new RuntimeException( e );
+		} catch ( IOException e ) {
+			Log.w( TAG, "Couldn't write to " + file, e );
+			closeQuietly();
+		}
+	}
+	
+	private void closeQuietly() {
+		if ( out != null ) {
+			try {
+				out.close();
+			} catch ( IOException e ) {
+				// Nothing else to do
+			}
+			out = null;
+		}
+	}
+	
+	/**
+	 * @return The log files that exist, oldest first, e.g. for sending them with a bug report.
+	 * Records still being written may be missing.
+	 */
+	public File[] getFiles() {
+		if ( previousFile.exists() ) {
+			return file.exists() ? new File[] { previousFile, file } : new File[] { previousFile };
+		}
+		return file.exists() ? new File[] { file } : new File[0];
+	}
+	
+	/**
+	 * Stops logging, removes this log from the QueryBuilder listeners, and closes the file
+	 * once the pending records have been written
+	 */
+	public void close() {
+		QueryBuilder.removeQueryListener( this );
+		writer.shutdown();
+	}
+}
@@ -0,0 +1,457 @@
+package com.buzzingandroid.content;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.os.Build;
+
+/**
+ * Merges cursors that are each sorted by the same sort order into a single sorted cursor,
+ * without copying or re-sorting any rows.<br />
+ * <br />
+ * The cursors are merged lazily as the merged cursor is moved forward, by keeping the next row of
+ * every cursor in a heap ordered by the sort key. Only the source cursor and row position of every merged
+ * row is remembered, so moving backwards or to an already merged position doesn't merge again.<br />
+ * <br />
+ * Values are ordered the way SQLite orders them: null first, then numbers, then text, then blobs.
+ * On versions older than Android 3.0, where the type of a value can't be read, text that is a number
+ * is ordered as a number.
+ * @author Jesper Borgstrup
+ */
+final class SortedMergeCursor extends AbstractCursor {
+	
+	private static final int INITIAL_CAPACITY = 64;
+	
+	private final Cursor[] cursors;
+	private final int[] keyColumns;
+	private final boolean[] descending;
+	private final boolean[] noCase;
+	private final boolean typed = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	
+	/*
+	 * The source cursor and row position of every merged row
+	 */
+	private int[] sources = new int[0];
+	private int[] rows = new int[0];
+	private int merged;
+	
+	/*
+	 * The cursors that have unmerged rows, ordered by the sort key of their next row
+	 */
+	private final int[] heap;
+	private int heapSize;
+	private final int[] next;
+	private final Object[][] nextKeys;
+	
+	private int count;
+	private boolean stale = true;
+	private Cursor current;
+	
+	private final DataSetObserver observer = new DataSetObserver() {
+		@Override
+		public void onChanged() {
+			mPos = -1;
+			stale = true;
+		}
+		
+		@Override
+		public void onInvalidated() {
+			mPos = -1;
+			stale = true;
+		}
+	};
+	
+	private SortedMergeCursor( Cursor[] cursors, int[] keyColumns, boolean[] descending, boolean[] noCase ) {
+		this.cursors = cursors;
+		this.keyColumns = keyColumns;
+		this.descending = descending;
+		this.noCase = noCase;
+		this.heap = new int[ cursors.length ];
+		this.next = new int[ cursors.length ];
+		this.nextKeys = new Object[ cursors.length ][];
+		for ( Cursor cursor: cursors ) {
+			cursor.registerDataSetObserver( observer );
+		}
+	}
+	
+	/**
+	 * @param cursors Non-null cursors with the same columns, each sorted by the sort order
+	 * @param sortOrder
+	 * @return A cursor merging the cursors in the sort order, or null if the sort order can't be merged.
+	 * Only a comma-separated list of columns in the cursors, each optionally followed by <tt>COLLATE BINARY</tt>
+	 * or <tt>COLLATE NOCASE</tt> and <tt>ASC</tt> or <tt>DESC</tt>, can be merged.
+	 * Columns declared with another collation than BINARY must name their collation in the sort order.
+	 */
+	static SortedMergeCursor create( Cursor[] cursors, String sortOrder ) {
+		if ( sortOrder == null || cursors.length == 0 ) {
+			return null;
+		}
+		String[] terms = sortOrder.split( "," );
+		int[] keyColumns = new int[ terms.length ];
+		boolean[] descending = new boolean[ terms.length ];
+		boolean[] noCase = new boolean[ terms.length ];
+		for ( int i = 0; i < terms.length; i++ ) {
+			String[] words = terms[i].trim().split( "\\s+" );
+			if ( words.length == 0 || !words[0].matches( "[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?" ) ) {
+				return null;
+			}
+			
+			int word = 1;
+			if ( word + 1 < words.length && words[ word ].equalsIgnoreCase( "COLLATE" ) ) {
+				if ( words[ word + 1 ].equalsIgnoreCase( "NOCASE" ) ) {
+					noCase[i] = true;
+				} else if ( !words[ word + 1 ].equalsIgnoreCase( "BINARY" ) ) {
+					return null;
+				}
+				word += 2;
+			}
+			if ( word < words.length && ( words[ word ].equalsIgnoreCase( "ASC" ) || words[ word ].equalsIgnoreCase( "DESC" ) ) ) {
+				descending[i] = words[ word ].equalsIgnoreCase( "DESC" );
+				word++;
+			}
+			if ( word < words.length ) {
+				return null;
+			}
+			
+			// The cursor columns are named without the table
+			String column = words[0].substring( words[0].lastIndexOf( '.' ) + 1 );
+			keyColumns[i] = cursors[0].getColumnIndex( column );
+			if ( keyColumns[i] == -1 ) {
+				return null;
+			}
+			for ( Cursor cursor: cursors ) {
+				if ( cursor.getColumnIndex( column ) != keyColumns[i] ) {
+					return null;
+				}
+			}
+		}
+		return new SortedMergeCursor( cursors, keyColumns, descending, noCase );
+	}
+	
+	/**
+	 * Start merging from the beginning, e.g. after the cursors changed
+	 */
+	private void reset() {
+		stale = false;
+		merged = 0;
+		heapSize = 0;
+		count = 0;
+		for ( int i = 0; i < cursors.length; i++ ) {
+			final int cursorCount = cursors[i].getCount();
+			count += cursorCount;
+			next[i] = 0;
+			if ( cursorCount > 0 ) {
+				nextKeys[i] = readKeys( cursors[i], 0 );
+				heap[ heapSize ] = i;
+				siftUp( heapSize++ );
+			}
+		}
+	}
+	
+	/**
+	 * Merge the next row
+	 */
+	private void advance() {
+		final int source = heap[0];
+		if ( merged == sources.length ) {
+			int capacity = Math.max( INITIAL_CAPACITY, Math.min( count, merged * 2 ) );
+			sources = copyOf( sources, capacity );
+			rows = copyOf( rows, capacity );
+		}
+		sources[ merged ] = source;
+		rows[ merged ] = next[ source ];
+		merged++;
+		
+		next[ source ]++;
+		if ( next[ source ] < cursors[ source ].getCount() ) {
+			nextKeys[ source ] = readKeys( cursors[ source ], next[ source ] );
+		} else {
+			heap[0] = heap[ --heapSize ];
+			nextKeys[ source ] = null;
+		}
+		if ( heapSize > 0 ) {
+			siftDown( 0 );
+		}
+	}
+	
+	private static int[] copyOf( int[] array, int length ) {
+		int[] copy = new int[ length ];
+		System.arraycopy( array, 0, copy, 0, Math.min( array.length, length ) );
+		return copy;
+	}
+	
+	private Object[] readKeys( Cursor cursor, int position ) {
+		cursor.moveToPosition( position );
+		Object[] keys = new Object[ keyColumns.length ];
+		for ( int i = 0; i < keys.length; i++ ) {
+			Object value = CursorSnapshot.readValue( cursor, keyColumns[i] );
+			keys[i] = typed ? value : toNumberIfNumeric( value );
+		}
+		return keys;
+	}
+	
+	private void siftUp( int index ) {
+		final int source = heap[ index ];
+		while ( index > 0 ) {
+			int parent = ( index - 1 ) / 2;
+			if ( compareSources( heap[ parent ], source ) <= 0 ) {
+				break;
+			}
+			heap[ index ] = heap[ parent ];
+			index = parent;
+		}
+		heap[ index ] = source;
+	}
+	
+	private void siftDown( int index ) {
+		final int source = heap[ index ];
+		while ( true ) {
+			int child = 2 * index + 1;
+			if ( child >= heapSize ) {
+				break;
+			}
+			if ( child + 1 < heapSize && compareSources( heap[ child + 1 ], heap[ child ] ) < 0 ) {
+				child++;
+			}
+			if ( compareSources( source, heap[ child ] ) <= 0 ) {
+				break;
+			}
+			heap[ index ] = heap[ child ];
+			index = child;
+		}
+		heap[ index ] = source;
+	}
+	
+	/**
+	 * Compares the next rows of two cursors. Equal rows are ordered by cursor, so the merge is stable.
+	 */
+	private int compareSources( int a, int b ) {
+		Object[] keysA = nextKeys[a];
+		Object[] keysB = nextKeys[b];
+		for ( int i = 0; i < keyColumns.length; i++ ) {
+			int order = compareValues( keysA[i], keysB[i], noCase[i] );
+			if ( order != 0 ) {
+				return descending[i] ? -order : order;
+			}
+		}
+		return a - b;
+	}
+	
+	private static int compareValues( Object a, Object b, boolean noCase ) {
+		int rankA = rank( a );
+		int rankB = rank( b );
+		if ( rankA != rankB ) {
+			return rankA - rankB;
+		}
+		switch ( rankA ) {
+		case 0:
+			return 0;
+		case 1:
+			return compareNumbers( (Number) a, (Number) b );
+		case 2:
+			return compareText( (String) a, (String) b, noCase );
+		default:
+			return compareBlobs( (byte[]) a, (byte[]) b );
+		}
+	}
+	
+	/**
+	 * @return The order of the storage class of the value in SQLite
+	 */
+	private static int rank( Object value ) {
+		if ( value == null ) {
+			return 0;
+		} else if ( value instanceof Number ) {
+			return 1;
+		} else if ( value instanceof String ) {
+			return 2;
+		}
+		return 3;
+	}
+	
+	private static Object toNumberIfNumeric( Object value ) {
+		if ( !( value instanceof String ) ) {
+			return value;
+		}
+		String text = (String) value;
+		if ( Predicate.isCanonicalInteger( text ) ) {
+			return Long.valueOf( text );
+		}
+		try {
+			return Double.valueOf( text );
+		} catch ( NumberFormatException e ) {
+			return value;
+		}
+	}
+	
+	private static int compareNumbers( Number a, Number b ) {
+		if ( a instanceof Long && b instanceof Long ) {
+			long x = a.longValue();
+			long y = b.longValue();
+			return x < y ? -1 : ( x == y ? 0 : 1 );
+		}
+		return Double.compare( a.doubleValue(), b.doubleValue() );
+	}
+	
+	/**
+	 * Compares by code point, which is the order of the UTF-8 bytes SQLite compares.
+	 * NOCASE only folds ASCII letters, like SQLite.
+	 */
+	private static int compareText( String a, String b, boolean noCase ) {
+		int i = 0;
+		int j = 0;
+		while ( i < a.length() && j < b.length() ) {
+			int x = a.codePointAt( i );
+			int y = b.codePointAt( j );
+			if ( noCase ) {
+				x = x >= 'A' && x <= 'Z' ? x + ( 'a' - 'A' ) : x;
+				y = y >= 'A' && y <= 'Z' ? y + ( 'a' - 'A' ) : y;
+			}
+			if ( x != y ) {
+				return x - y;
+			}
+			i += Character.charCount( x );
+			j += Character.charCount( y );
+		}
+		return ( a.length() - i ) - ( b.length() - j );
+	}
+	
+	private static int compareBlobs( byte[] a, byte[] b ) {
+		for ( int i = 0; i < a.length && i < b.length; i++ ) {
+			int order = ( a[i] & 0xff ) - ( b[i] & 0xff );
+			if ( order != 0 ) {
+				return order;
+			}
+		}
+		return a.length - b.length;
+	}
+	
+	@Override
+	public boolean onMove( int oldPosition, int newPosition ) {
+		if ( stale ) {
+			reset();
+		}
+		while ( merged <= newPosition ) {
+			advance();
+		}
+		current = cursors[ sources[ newPosition ] ];
+		return current.moveToPosition( rows[ newPosition ] );
+	}
+	
+	@Override
+	public int getCount() {
+		if ( stale ) {
+			reset();
+		}
+		return count;
+	}
+	
+	@Override
+	public String[] getColumnNames() {
+		return cursors[0].getColumnNames();
+	}
+	
+	@Override
+	public String getString( int column ) {
+		return current.getString( column );
+	}
+	
+	@Override
+	public short getShort( int column ) {
+		return current.getShort( column );
+	}
+	
+	@Override
+	public int getInt( int column ) {
+		return current.getInt( column );
+	}
+	
+	@Override
+	public long getLong( int column ) {
+		return current.getLong( column );
+	}
+	
+	@Override
+	public float getFloat( int column ) {
+		return current.getFloat( column );
+	}
+	
+	@Override
+	public double getDouble( int column ) {
+		return current.getDouble( column );
+	}
+	
+	@Override
+	public byte[] getBlob( int column ) {
+		return current.getBlob( column );
+	}
+	
+	@Override
+	public boolean isNull( int column ) {
+		return current.isNull( column );
+	}
+	
+	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+	@Override
+	public int getType( int column ) {
+		return current.getType( column );
+	}
+	
+	@Override
+	public void deactivate() {
+		for ( Cursor cursor: cursors ) {
+			cursor.deactivate();
+		}
+		super.deactivate();
+	}
+	
+	@Override
+	public void close() {
+		for ( Cursor cursor: cursors ) {
+			cursor.close();
+		}
+		super.close();
+	}
+	
+	@Override
+	public void registerContentObserver( ContentObserver observer ) {
+		for ( Cursor cursor: cursors ) {
+			cursor.registerContentObserver( observer );
+		}
+	}
+	
+	@Override
+	public void unregisterContentObserver( ContentObserver observer ) {
+		for ( Cursor cursor: cursors ) {
+			cursor.unregisterContentObserver( observer );
+		}
+	}
+	
+	@Override
+	public void registerDataSetObserver( DataSetObserver observer ) {
+		for ( Cursor cursor: cursors ) {
+			cursor.registerDataSetObserver( observer );
+		}
+	}
+	
+	@Override
+	public void unregisterDataSetObserver( DataSetObserver observer ) {
+		for ( Cursor cursor: cursors ) {
+			cursor.unregisterDataSetObserver( observer );
+		}
+	}
+	
+	@SuppressWarnings("deprecation")
+	@Override
+	public boolean requery() {
+		stale = true;
+		for ( Cursor cursor: cursors ) {
+			if ( !cursor.requery() ) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,164 @@
+package com.buzzingandroid.content;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import com.buzzingandroid.content.AsyncQueryExecutor.Priority;
+
+/**
+ * Runs the free-text search of a {@link QueryBuilder} as the user types.<br />
+ * <br />
+ * Instead of querying on every keystroke, this waits until no new query has been set
+ * for a short while (the debounce window), and only queries the latest one.
+ * A query that is superseded before it has been delivered is cancelled: it is skipped if it
+ * hasn't started yet, and its cursor is closed if it has. So only the newest result is delivered.<br />
+ * <br />
+ * Every query runs on a copy of the QueryBuilder, so the QueryBuilder may be changed or
+ * reused while searches run. The queries run with {@link Priority#VISIBLE} on the QueryBuilder's
+ * {@link AsyncQueryExecutor}.<br />
+ * <br />
+ * Create an instance with {@link QueryBuilder#createTypeAheadSearch(Context, Uri, ResultListener)}
+ * on a thread with a Looper (e.g. the main thread), and call {@link #setQuery(CharSequence)} from
+ * that thread, e.g. from a <tt>TextWatcher</tt>.
+ * @author Jesper Borgstrup
+ */
+public class TypeAheadSearch {
+	
+	public static final long DEFAULT_DEBOUNCE_MILLIS = 250;
+	
+	public interface ResultListener {
+		/**
+		 * Called on the thread that created the TypeAheadSearch with the result of the latest query.<br />
+		 * The listener is responsible for closing the cursor, e.g. by swapping it into a <tt>CursorAdapter</tt>.
+		 * @param query The query searched for
+		 * @param cursor The result, or null if the provider returned null
+		 */
+		public void searchCompleted( String query, Cursor cursor );
+	}
+	
+	private final Context context;
+	private final Uri uri;
+	private final QueryBuilder template;
+	private final ResultListener listener;
+	private final Handler handler;
+	
+	private long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+	
+	private String pendingQuery;
+	private String issuedQuery;
+	private CancellationToken issuedToken;
+	
+	private final Runnable issuePendingQuery = new Runnable() {
+		public void run() {
+			issue( pendingQuery );
+		}
+	};
+	
+	/**
+	 * Must be created on a thread with a Looper
+	 * @param context
+	 * @param uri
+	 * @param builder The builder with the selection and search columns to search. It is copied,
+	 * so later changes to it are not used.
+	 * @param listener
+	 */
+	TypeAheadSearch( Context context, Uri uri, QueryBuilder builder, ResultListener listener ) {
+		Looper looper = Looper.myLooper();
+		if ( looper == null ) {
+			throw new IllegalStateException( "TypeAheadSearch must be created on a thread with a Looper" );
+		}
+		this.context = context.getApplicationContext();
+		this.uri = uri;
+		this.template = new QueryBuilder( builder );
+		this.listener = listener;
+		this.handler = new Handler( looper );
+	}
+	
+	/**
+	 * Sets how long to wait after the latest call to {@link #setQuery(CharSequence)} before querying.
+	 * The default is {@link #DEFAULT_DEBOUNCE_MILLIS}.
+	 * @param debounceMillis
+	 * @return The TypeAheadSearch instance for chaining method calls
+	 */
+	public TypeAheadSearch setDebounceMillis( long debounceMillis ) {
+		this.debounceMillis = debounceMillis;
+		return this;
+	}
+	
+	/**
+	 * Sets the query to search for once the user pauses typing. Must be called on the thread
+	 * that created this TypeAheadSearch.
+	 * @param query
+	 */
+	public void setQuery( CharSequence query ) {
+		pendingQuery = TextUtils.isEmpty( query ) ? null : query.toString();
+		handler.removeCallbacks( issuePendingQuery );
+		handler.postDelayed( issuePendingQuery, debounceMillis );
+	}
+	
+	/**
+	 * Searches for the query right away, without waiting for the debounce window.
+	 * Must be called on the thread that created this TypeAheadSearch.
+	 * @param query
+	 */
+	public void searchNow( CharSequence query ) {
+		handler.removeCallbacks( issuePendingQuery );
+		issue( TextUtils.isEmpty( query ) ? null : query.toString() );
+	}
+	
+	/**
+	 * Cancels any pending or running query. No result is delivered until the next query is set.
+	 */
+	public void cancel() {
+		handler.removeCallbacks( issuePendingQuery );
+		if ( issuedToken != null ) {
+			issuedToken.cancel();
+			issuedToken = null;
+		}
+		issuedQuery = null;
+	}
+	
+	/**
+	 * Start querying for the query in the background, superseding any earlier query
+	 * @param query
+	 */
+	private void issue( final String query ) {
+		if ( issuedToken != null ) {
+			// The same query is already running or has been delivered
+			if ( TextUtils.equals( query, issuedQuery ) ) {
+				return;
+			}
+			issuedToken.cancel();
+		}
+		
+		final QueryBuilder snapshot = new QueryBuilder( template ).setSearchQuery( query );
+		issuedQuery = query;
+		issuedToken = template.getAsyncQueryExecutor().submit( Priority.VISIBLE, new AsyncQueryExecutor.Task<Cursor>() {
+			@Override
+			protected Cursor run() {
+				Cursor cursor = snapshot.query( context, uri );
+				if ( cursor != null ) {
+					// Fill the cursor window here instead of on the listener's thread
+					cursor.getCount();
+				}
+				return cursor;
+			}
+			
+			@Override
+			protected void deliver( Cursor cursor ) {
+				listener.searchCompleted( query, cursor );
+			}
+			
+			@Override
+			protected void discard( Cursor cursor ) {
+				if ( cursor != null ) {
+					cursor.close();
+				}
+			}
+		} );
+	}
+}